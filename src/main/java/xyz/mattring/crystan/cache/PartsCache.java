@@ -1,15 +1,202 @@
 package xyz.mattring.crystan.cache;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
  * Very simple cache for things like Nats connections, Jackson mappers, etc.
+ * <p>
+ * Parts belong to an owner object, usually the component that uses them, and are looked up by the owner's identity
+ * and a typed {@link Key}, so a lookup neither builds a key nor allocates. When the owner stops,
+ * {@link #evict} removes its parts and closes those that are AutoCloseable.
+ * Owners are only weakly referenced, so the parts of an owner that was never evicted go away with it.
  */
 public class PartsCache {
-    private static final Map<String, Object> cache = new java.util.concurrent.ConcurrentHashMap<>();
 
-    public static Object computeIfAbsent(String key, Function<? super String, ?> mappingFunction) {
-        return cache.computeIfAbsent(key, mappingFunction);
+    /**
+     * A typed part key. Keys are compared by identity, so each key is usually a constant.
+     *
+     * @param <T> the type of the part
+     */
+    public static final class Key<T> {
+        private final String name;
+
+        public Key(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The parts of one owner, which is only weakly referenced, so the cache does not keep components alive.
+     */
+    private static final class OwnerRef extends WeakReference<Object> {
+        final int hash;
+        final Map<Key<?>, Object> parts = new ConcurrentHashMap<>();
+
+        OwnerRef(Object owner) {
+            super(owner);
+            this.hash = System.identityHashCode(owner);
+        }
+    }
+
+    private static final int MIN_TABLE_SIZE = 16;
+
+    /**
+     * An open addressing table of owners, at most half full. Copy-on-write, so that lookups only read
+     * a volatile field, and neither lock nor allocate. Owners are added rarely, once per component.
+     * Entries whose owner was garbage collected are dropped, and their parts closed, when the table is next copied.
+     */
+    private static volatile OwnerRef[] owners = new OwnerRef[MIN_TABLE_SIZE];
+
+    /**
+     * Returns the owner's part for the key, creating it first if needed.
+     * The mapping function runs outside of any lock, so it may look up other parts of the same owner.
+     * If two threads create the same part at once, one of them is kept, and the other is closed if it is AutoCloseable.
+     * Parts must not reference their owner, or it is never garbage collected.
+     *
+     * @param owner           the owner, compared by identity
+     * @param key             the part key
+     * @param mappingFunction creates the part from the owner
+     * @return the part
+     */
+    @SuppressWarnings("unchecked")
+    public static <O, T> T computeIfAbsent(O owner, Key<T> key, Function<? super O, ? extends T> mappingFunction) {
+        final OwnerRef ref = find(owners, owner);
+        if (ref != null) {
+            final Object part = ref.parts.get(key);
+            if (part != null) {
+                return (T) part;
+            }
+        }
+        final T newPart = mappingFunction.apply(owner);
+        final List<Object> expunged = new ArrayList<>();
+        final Object existing;
+        // under the lock, so that the part never lands in the parts map of a concurrent evict
+        synchronized (PartsCache.class) {
+            OwnerRef current = find(owners, owner);
+            if (current == null) {
+                current = new OwnerRef(owner);
+                owners = copyTable(owners, null, current, expunged);
+            }
+            existing = current.parts.putIfAbsent(key, newPart);
+        }
+        if (existing != null) {
+            expunged.add(newPart);
+        }
+        closeAll(expunged);
+        return existing != null ? (T) existing : newPart;
+    }
+
+    /**
+     * Removes one part, so its owner can close it.
+     *
+     * @return the removed part, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T remove(Object owner, Key<T> key) {
+        synchronized (PartsCache.class) {
+            final OwnerRef ref = find(owners, owner);
+            return ref != null ? (T) ref.parts.remove(key) : null;
+        }
+    }
+
+    /**
+     * Removes all parts of the owner, and closes those that are AutoCloseable.
+     * Every part is closed, even if closing an earlier one fails.
+     *
+     * @param owner the owner, compared by identity
+     * @throws RuntimeException if closing any part failed, with the failures of the other parts suppressed
+     */
+    public static void evict(Object owner) {
+        final List<Object> parts = new ArrayList<>();
+        synchronized (PartsCache.class) {
+            final OwnerRef ref = find(owners, owner);
+            if (ref == null) {
+                return;
+            }
+            parts.addAll(ref.parts.values());
+            ref.parts.clear();
+            owners = copyTable(owners, ref, null, parts);
+        }
+        closeAll(parts);
+    }
+
+    private static OwnerRef find(OwnerRef[] table, Object owner) {
+        final int mask = table.length - 1;
+        for (int i = System.identityHashCode(owner) & mask; ; i = (i + 1) & mask) {
+            final OwnerRef ref = table[i];
+            if (ref == null || ref.get() == owner) {
+                return ref;
+            }
+        }
+    }
+
+    /**
+     * Copies the table without the removed entry, and with the added one.
+     * Entries whose owner was garbage collected are left out, and their parts added to expunged.
+     * Must hold the lock.
+     */
+    private static OwnerRef[] copyTable(OwnerRef[] table, OwnerRef removed, OwnerRef added, List<Object> expunged) {
+        final List<OwnerRef> live = new ArrayList<>();
+        for (OwnerRef ref : table) {
+            if (ref == null || ref == removed) {
+                continue;
+            }
+            if (ref.get() == null) {
+                expunged.addAll(ref.parts.values());
+            } else {
+                live.add(ref);
+            }
+        }
+        if (added != null) {
+            live.add(added);
+        }
+        int size = MIN_TABLE_SIZE;
+        while (size < live.size() * 2) {
+            size <<= 1;
+        }
+        final OwnerRef[] newTable = new OwnerRef[size];
+        final int mask = size - 1;
+        for (OwnerRef ref : live) {
+            int i = ref.hash & mask;
+            while (newTable[i] != null) {
+                i = (i + 1) & mask;
+            }
+            newTable[i] = ref;
+        }
+        return newTable;
+    }
+
+    /**
+     * Closes the parts that are AutoCloseable, all of them, then throws the first failure, if any,
+     * with the others added to it as suppressed exceptions.
+     */
+    private static void closeAll(List<Object> parts) {
+        RuntimeException failure = null;
+        for (Object part : parts) {
+            if (part instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception ex) {
+                    if (failure == null) {
+                        failure = new RuntimeException("failed to close part", ex);
+                    } else {
+                        failure.addSuppressed(ex);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 }
@@ -0,0 +1,76 @@
+package xyz.mattring.crystan.codec;
+
+import xyz.mattring.crystan.util.BufferPool;
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+/**
+ * Compact binary codec for records and POJOs, without any schema compiler or external library.
+ * <p>
+ * The schema is derived from the class by reflection, once per class: record components in declaration order,
+ * or the fields of a POJO, in the order its {@link BinaryFields} annotation lists them.
+ * Values are written back to back, without field names or tags:
+ * <ul>
+ *     <li>int, long, short: zigzag varints. char: unsigned varint. byte, boolean: 1 byte.
+ *     float, double: IEEE bits, big-endian.</li>
+ *     <li>String, byte[]: varint length, then the UTF-8 or raw bytes. Enums: varint ordinal.</li>
+ *     <li>List, Collection: varint size, then the elements. Nested records and POJOs: their fields.</li>
+ *     <li>Every non-primitive value is preceded by a 1 byte null marker.</li>
+ * </ul>
+ * Both sides must use the same class shape, so add new fields to the end, and only when every reader has them.
+ * <p>
+ * POJOs are created with a no-arg constructor and their fields are set reflectively,
+ * or else with a constructor whose parameter types match the fields, in order.
+ * Such a constructor must not take two parameters of the same type, unless it is compiled with -parameters,
+ * and its parameters have the names of the fields.
+ *
+ * @param <T> the type of the message
+ */
+public class BinaryCodec<T> implements Codec<T> {
+
+    public static final byte FORMAT_ID = 2;
+
+    private final Class<T> type;
+    private final BinarySchema schema;
+
+    /**
+     * @param type the record or POJO class
+     * @throws IllegalArgumentException if the class has a field type that is not supported, or is a POJO without a valid field order
+     */
+    public BinaryCodec(Class<T> type) {
+        this.type = type;
+        this.schema = BinarySchema.of(type);
+    }
+
+    @Override
+    public byte formatId() {
+        return FORMAT_ID;
+    }
+
+    @Override
+    public byte[] encode(T msg) {
+        final BufferPool bufferPool = BufferPool.shared();
+        final ByteArrayOutput out = bufferPool.acquire();
+        try {
+            schema.write(msg, out);
+            return out.toByteArray();
+        } finally {
+            bufferPool.release(out);
+        }
+    }
+
+    @Override
+    public boolean encodesInPlace() {
+        return true;
+    }
+
+    @Override
+    public void encodeTo(T msg, ByteArrayOutput out) {
+        schema.write(msg, out);
+    }
+
+    @Override
+    public T decode(byte[] bytes, int offset, int length) {
+        final BinaryInput in = new BinaryInput(bytes, offset, length);
+        return type.cast(schema.read(in));
+    }
+}
@@ -0,0 +1,23 @@
+package xyz.mattring.crystan.codec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the BinaryCodec layout of a POJO: its fields, by name, in wire order.
+ * <p>
+ * Reflection does not guarantee the order of a class's fields, so without this, two JVMs or builds
+ * could disagree on the layout. List every non-static, non-transient field, inherited ones included.
+ * Records do not need it, their component order is part of the class.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface BinaryFields {
+
+    /**
+     * @return the field names, in wire order
+     */
+    String[] value();
+}
@@ -0,0 +1,84 @@
+package xyz.mattring.crystan.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads BinaryCodec values from a view over a byte array.
+ */
+final class BinaryInput {
+
+    private final byte[] bytes;
+    private final int limit;
+    private int pos;
+
+    BinaryInput(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    private void require(int n) {
+        if (n < 0 || limit - pos < n) {
+            throw new IllegalArgumentException("truncated binary message");
+        }
+    }
+
+    byte readByte() {
+        require(1);
+        return bytes[pos++];
+    }
+
+    long readVarLong() {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    long readZigZag() {
+        final long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1L);
+    }
+
+    int readLength() {
+        final long length = readVarLong();
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("malformed length");
+        }
+        return (int) length;
+    }
+
+    int readFixedInt() {
+        require(4);
+        final int v = ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+                | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+
+    long readFixedLong() {
+        return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+    }
+
+    String readString() {
+        final int length = readLength();
+        require(length);
+        final String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    byte[] readBytes() {
+        final int length = readLength();
+        require(length);
+        final byte[] b = Arrays.copyOfRange(bytes, pos, pos + length);
+        pos += length;
+        return b;
+    }
+}
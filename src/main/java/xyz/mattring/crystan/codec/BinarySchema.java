@@ -0,0 +1,494 @@
+package xyz.mattring.crystan.codec;
+
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The BinaryCodec layout of one record or POJO class, derived by reflection.
+ */
+final class BinarySchema {
+
+    /**
+     * Writes and reads one value.
+     */
+    interface ValueCodec {
+        void write(Object value, ByteArrayOutput out);
+
+        Object read(BinaryInput in);
+    }
+
+    interface Getter {
+        Object get(Object obj) throws ReflectiveOperationException;
+    }
+
+    private static final ClassValue<BinarySchema> SCHEMAS = new ClassValue<>() {
+        @Override
+        protected BinarySchema computeValue(Class<?> type) {
+            return new BinarySchema(type);
+        }
+    };
+
+    static BinarySchema of(Class<?> type) {
+        return SCHEMAS.get(type);
+    }
+
+    private final Getter[] getters;
+    private final ValueCodec[] codecs;
+    private final Constructor<?> constructor;
+    /**
+     * The fields to set after calling a no-arg constructor, or null if the constructor takes all the values.
+     */
+    private final Field[] fieldsToSet;
+
+    private BinarySchema(Class<?> type) {
+        if (type.isRecord()) {
+            final RecordComponent[] components = type.getRecordComponents();
+            getters = new Getter[components.length];
+            codecs = new ValueCodec[components.length];
+            final Class<?>[] paramTypes = new Class<?>[components.length];
+            for (int i = 0; i < components.length; i++) {
+                final Method accessor = components[i].getAccessor();
+                accessor.setAccessible(true);
+                getters[i] = accessor::invoke;
+                codecs[i] = codecFor(components[i].getGenericType());
+                paramTypes[i] = components[i].getType();
+            }
+            constructor = findConstructor(type, paramTypes);
+            fieldsToSet = null;
+        } else {
+            final Field[] fields = collectFields(type);
+            getters = new Getter[fields.length];
+            codecs = new ValueCodec[fields.length];
+            final Class<?>[] fieldTypes = new Class<?>[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setAccessible(true);
+                getters[i] = fields[i]::get;
+                codecs[i] = codecFor(fields[i].getGenericType());
+                fieldTypes[i] = fields[i].getType();
+            }
+            final Constructor<?> noArgConstructor = findConstructor(type);
+            if (noArgConstructor != null) {
+                constructor = noArgConstructor;
+                fieldsToSet = fields;
+            } else {
+                constructor = findConstructor(type, fieldTypes);
+                fieldsToSet = null;
+                if (constructor != null) {
+                    checkParameterOrder(constructor, fields);
+                }
+            }
+        }
+        if (constructor == null) {
+            throw new IllegalArgumentException(type.getName() + " needs a no-arg constructor, or one that takes all its fields in order");
+        }
+        constructor.setAccessible(true);
+    }
+
+    /**
+     * @return the fields named by the class's BinaryFields annotation, in its order
+     * @throws IllegalArgumentException if the annotation is missing, or does not list exactly the non-static, non-transient fields
+     */
+    static Field[] collectFields(Class<?> type) {
+        final BinaryFields order = type.getAnnotation(BinaryFields.class);
+        if (order == null) {
+            throw new IllegalArgumentException(type.getName() + " needs a @BinaryFields annotation with its field order");
+        }
+        final Set<Field> expected = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    expected.add(field);
+                }
+            }
+        }
+        final Field[] fields = new Field[order.value().length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = findField(type, order.value()[i]);
+            if (fields[i] == null || !expected.remove(fields[i])) {
+                throw new IllegalArgumentException(type.getName() + " @BinaryFields names an unknown, repeated, static or transient field: " + order.value()[i]);
+            }
+        }
+        if (!expected.isEmpty()) {
+            throw new IllegalArgumentException(type.getName() + " @BinaryFields does not list " + expected.iterator().next().getName());
+        }
+        return fields;
+    }
+
+    /**
+     * @return the field with the name, declared by the class or the closest superclass, or null
+     */
+    static Field findField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getName().equals(name)) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A constructor matched by its parameter types alone could swap two fields of the same type.
+     * So its parameters must have the fields' names when they were compiled with -parameters,
+     * and otherwise it must not take two parameters of the same type.
+     */
+    static void checkParameterOrder(Constructor<?> constructor, Field[] fields) {
+        final Parameter[] params = constructor.getParameters();
+        final Set<Class<?>> paramTypes = new HashSet<>();
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].isNamePresent()) {
+                if (!params[i].getName().equals(fields[i].getName())) {
+                    throw new IllegalArgumentException(constructor.getDeclaringClass().getName()
+                            + " constructor parameter " + params[i].getName() + " does not match field " + fields[i].getName());
+                }
+            } else if (!paramTypes.add(params[i].getType())) {
+                throw new IllegalArgumentException(constructor.getDeclaringClass().getName()
+                        + " constructor takes several " + params[i].getType().getSimpleName()
+                        + " parameters, so add a no-arg constructor, or compile with -parameters to match them by name");
+            }
+        }
+    }
+
+    static Constructor<?> findConstructor(Class<?> type, Class<?>... paramTypes) {
+        for (Constructor<?> c : type.getDeclaredConstructors()) {
+            if (Arrays.equals(c.getParameterTypes(), paramTypes)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    void write(Object obj, ByteArrayOutput out) {
+        try {
+            for (int i = 0; i < codecs.length; i++) {
+                codecs[i].write(getters[i].get(obj), out);
+            }
+        } catch (ReflectiveOperationException roex) {
+            throw new RuntimeException(roex);
+        }
+    }
+
+    Object read(BinaryInput in) {
+        final Object[] values = new Object[codecs.length];
+        for (int i = 0; i < codecs.length; i++) {
+            values[i] = codecs[i].read(in);
+        }
+        try {
+            if (fieldsToSet == null) {
+                return constructor.newInstance(values);
+            }
+            final Object obj = constructor.newInstance();
+            for (int i = 0; i < fieldsToSet.length; i++) {
+                fieldsToSet[i].set(obj, values[i]);
+            }
+            return obj;
+        } catch (ReflectiveOperationException roex) {
+            throw new RuntimeException(roex);
+        }
+    }
+
+    static ValueCodec codecFor(Type genericType) {
+        final Class<?> raw = genericType instanceof ParameterizedType pt ? (Class<?>) pt.getRawType() : (Class<?>) genericType;
+        if (raw.isPrimitive()) {
+            return primitiveCodec(raw);
+        }
+        if (raw == Boolean.class || raw == Byte.class || raw == Short.class || raw == Character.class
+                || raw == Integer.class || raw == Long.class || raw == Float.class || raw == Double.class) {
+            return nullable(primitiveCodec(unbox(raw)));
+        }
+        if (raw == String.class) {
+            return nullable(STRING);
+        }
+        if (raw == byte[].class) {
+            return nullable(BYTES);
+        }
+        if (raw.isEnum()) {
+            return nullable(enumCodec(raw));
+        }
+        if (raw == List.class || raw == Collection.class) {
+            if (!(genericType instanceof ParameterizedType pt)) {
+                throw new IllegalArgumentException("raw " + raw.getName() + " is not supported, it needs an element type");
+            }
+            return nullable(listCodec(codecFor(pt.getActualTypeArguments()[0])));
+        }
+        if (raw.isArray() || raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) || raw.getName().startsWith("java.")) {
+            throw new IllegalArgumentException(raw.getName() + " is not supported");
+        }
+        return nullable(nestedCodec(raw));
+    }
+
+    static Class<?> unbox(Class<?> boxed) {
+        return switch (boxed.getSimpleName()) {
+            case "Boolean" -> boolean.class;
+            case "Byte" -> byte.class;
+            case "Short" -> short.class;
+            case "Character" -> char.class;
+            case "Integer" -> int.class;
+            case "Long" -> long.class;
+            case "Float" -> float.class;
+            default -> double.class;
+        };
+    }
+
+    static ValueCodec primitiveCodec(Class<?> type) {
+        if (type == boolean.class) {
+            return BOOLEAN;
+        } else if (type == byte.class) {
+            return BYTE;
+        } else if (type == short.class) {
+            return SHORT;
+        } else if (type == char.class) {
+            return CHAR;
+        } else if (type == int.class) {
+            return INT;
+        } else if (type == long.class) {
+            return LONG;
+        } else if (type == float.class) {
+            return FLOAT;
+        } else if (type == double.class) {
+            return DOUBLE;
+        }
+        throw new IllegalArgumentException(type.getName() + " is not supported");
+    }
+
+    static ValueCodec nullable(ValueCodec codec) {
+        return new ValueCodec() {
+            @Override
+            public void write(Object value, ByteArrayOutput out) {
+                if (value == null) {
+                    out.write(0);
+                } else {
+                    out.write(1);
+                    codec.write(value, out);
+                }
+            }
+
+            @Override
+            public Object read(BinaryInput in) {
+                return in.readByte() == 0 ? null : codec.read(in);
+            }
+        };
+    }
+
+    static ValueCodec enumCodec(Class<?> enumType) {
+        final Object[] constants = enumType.getEnumConstants();
+        return new ValueCodec() {
+            @Override
+            public void write(Object value, ByteArrayOutput out) {
+                writeVarLong(((Enum<?>) value).ordinal(), out);
+            }
+
+            @Override
+            public Object read(BinaryInput in) {
+                final int ordinal = in.readLength();
+                if (ordinal >= constants.length) {
+                    throw new IllegalArgumentException("unknown " + enumType.getName() + " ordinal " + ordinal);
+                }
+                return constants[ordinal];
+            }
+        };
+    }
+
+    static ValueCodec listCodec(ValueCodec elementCodec) {
+        return new ValueCodec() {
+            @Override
+            public void write(Object value, ByteArrayOutput out) {
+                final Collection<?> collection = (Collection<?>) value;
+                writeVarLong(collection.size(), out);
+                for (Object element : collection) {
+                    elementCodec.write(element, out);
+                }
+            }
+
+            @Override
+            public Object read(BinaryInput in) {
+                final int size = in.readLength();
+                final List<Object> list = new ArrayList<>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++) {
+                    list.add(elementCodec.read(in));
+                }
+                return list;
+            }
+        };
+    }
+
+    /**
+     * Looks the nested schema up on first use, so classes can refer to themselves.
+     */
+    static ValueCodec nestedCodec(Class<?> type) {
+        return new ValueCodec() {
+            @Override
+            public void write(Object value, ByteArrayOutput out) {
+                of(type).write(value, out);
+            }
+
+            @Override
+            public Object read(BinaryInput in) {
+                return of(type).read(in);
+            }
+        };
+    }
+
+    static void writeVarLong(long value, ByteArrayOutput out) {
+        long v = value;
+        while ((v & ~0x7FL) != 0L) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static void writeZigZag(long value, ByteArrayOutput out) {
+        writeVarLong((value << 1) ^ (value >> 63), out);
+    }
+
+    static void writeFixedInt(int value, ByteArrayOutput out) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static final ValueCodec BOOLEAN = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            out.write((Boolean) value ? 1 : 0);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return in.readByte() != 0;
+        }
+    };
+
+    static final ValueCodec BYTE = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            out.write((Byte) value);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return in.readByte();
+        }
+    };
+
+    static final ValueCodec SHORT = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            writeZigZag((Short) value, out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return (short) in.readZigZag();
+        }
+    };
+
+    static final ValueCodec CHAR = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            writeVarLong((Character) value, out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return (char) in.readVarLong();
+        }
+    };
+
+    static final ValueCodec INT = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            writeZigZag((Integer) value, out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return (int) in.readZigZag();
+        }
+    };
+
+    static final ValueCodec LONG = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            writeZigZag((Long) value, out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return in.readZigZag();
+        }
+    };
+
+    static final ValueCodec FLOAT = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            writeFixedInt(Float.floatToRawIntBits((Float) value), out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return Float.intBitsToFloat(in.readFixedInt());
+        }
+    };
+
+    static final ValueCodec DOUBLE = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            final long bits = Double.doubleToRawLongBits((Double) value);
+            writeFixedInt((int) (bits >>> 32), out);
+            writeFixedInt((int) bits, out);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return Double.longBitsToDouble(in.readFixedLong());
+        }
+    };
+
+    static final ValueCodec STRING = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            final byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length, out);
+            out.write(utf8, 0, utf8.length);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return in.readString();
+        }
+    };
+
+    static final ValueCodec BYTES = new ValueCodec() {
+        @Override
+        public void write(Object value, ByteArrayOutput out) {
+            final byte[] bytes = (byte[]) value;
+            writeVarLong(bytes.length, out);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public Object read(BinaryInput in) {
+            return in.readBytes();
+        }
+    };
+}
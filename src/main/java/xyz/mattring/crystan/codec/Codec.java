@@ -0,0 +1,117 @@
+package xyz.mattring.crystan.codec;
+
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Encodes and decodes message payloads in one format.
+ * <p>
+ * The format ID travels with each message (in the Job ID header, or a NATS header),
+ * so servers with several codecs can decode each request, and encode its response, in the client's format.
+ * Format IDs range from 0 to 15. 0 is the receiver's default format, 1 and 2 are JSON and the built-in binary format,
+ * and the rest are free for custom codecs.
+ *
+ * @param <T> the type of the message
+ */
+public interface Codec<T> extends PayloadDeserializer<T> {
+
+    byte FORMAT_DEFAULT = 0;
+    byte MAX_FORMAT_ID = 15;
+
+    byte formatId();
+
+    byte[] encode(T msg);
+
+    /**
+     * Appends the encoded message to a buffer, e.g. a pooled one.
+     * Override this to write straight into the buffer, instead of copying the output of encode.
+     *
+     * @param msg the message
+     * @param out the buffer
+     */
+    default void encodeTo(T msg, ByteArrayOutput out) {
+        final byte[] bytes = encode(msg);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Tells the publishers whether encodeTo writes straight into the buffer.
+     * When it does not, and nothing is prepended to the payload, they publish the output of encode as is,
+     * rather than copying it into a pooled buffer and back out.
+     *
+     * @return true if encodeTo is overridden to write in place, false by default
+     */
+    default boolean encodesInPlace() {
+        return false;
+    }
+
+    /**
+     * @param bytes  the byte array
+     * @param offset the start of the payload
+     * @param length the length of the payload
+     * @return the message
+     */
+    T decode(byte[] bytes, int offset, int length);
+
+    @Override
+    default T deserialize(byte[] bytes, int offset, int length) {
+        return decode(bytes, offset, length);
+    }
+
+    /**
+     * Creates a codec from an encoder and a decoder, either of which may be null if it is never needed.
+     *
+     * @param formatId the format ID
+     * @param encoder  converts a message to a payload
+     * @param decoder  converts a payload to a message
+     * @return codec
+     */
+    static <T> Codec<T> of(byte formatId, Function<T, byte[]> encoder, PayloadDeserializer<T> decoder) {
+        return of(formatId, encoder, null, decoder);
+    }
+
+    /**
+     * Creates a codec from an encoder, an in-place encoder and a decoder, any of which may be null if it is never needed.
+     *
+     * @param formatId       the format ID
+     * @param encoder        converts a message to a payload
+     * @param inPlaceEncoder writes a message straight into a buffer, or null to copy the output of the encoder
+     * @param decoder        converts a payload to a message
+     * @return codec
+     */
+    static <T> Codec<T> of(byte formatId, Function<T, byte[]> encoder, BiConsumer<T, ByteArrayOutput> inPlaceEncoder, PayloadDeserializer<T> decoder) {
+        return new Codec<>() {
+            @Override
+            public byte formatId() {
+                return formatId;
+            }
+
+            @Override
+            public byte[] encode(T msg) {
+                return encoder.apply(msg);
+            }
+
+            @Override
+            public void encodeTo(T msg, ByteArrayOutput out) {
+                if (inPlaceEncoder != null) {
+                    inPlaceEncoder.accept(msg, out);
+                } else {
+                    Codec.super.encodeTo(msg, out);
+                }
+            }
+
+            @Override
+            public boolean encodesInPlace() {
+                return inPlaceEncoder != null;
+            }
+
+            @Override
+            public T decode(byte[] bytes, int offset, int length) {
+                return decoder.deserialize(bytes, offset, length);
+            }
+        };
+    }
+}
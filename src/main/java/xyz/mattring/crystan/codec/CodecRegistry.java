@@ -0,0 +1,63 @@
+package xyz.mattring.crystan.codec;
+
+import java.util.function.IntFunction;
+
+/**
+ * The codecs that a client or server understands, by format ID.
+ * <p>
+ * The default codec handles format ID 0, i.e. messages that do not say what format they are in,
+ * as well as its own format ID. Register codecs BEFORE the owner is started.
+ *
+ * @param <T> the type of the message
+ */
+public final class CodecRegistry<T> implements IntFunction<Codec<T>> {
+
+    private final Codec<T>[] codecs;
+
+    @SuppressWarnings("unchecked")
+    public CodecRegistry(Codec<T> defaultCodec) {
+        this.codecs = (Codec<T>[]) new Codec<?>[Codec.MAX_FORMAT_ID + 1];
+        this.codecs[Codec.FORMAT_DEFAULT] = defaultCodec;
+        if (defaultCodec.formatId() != Codec.FORMAT_DEFAULT) {
+            register(defaultCodec);
+        }
+    }
+
+    /**
+     * @param codec the codec, with a format ID from 1 to 15
+     * @return this registry
+     */
+    public CodecRegistry<T> register(Codec<T> codec) {
+        final byte formatId = codec.formatId();
+        if (formatId <= Codec.FORMAT_DEFAULT || formatId > Codec.MAX_FORMAT_ID) {
+            throw new IllegalArgumentException("formatId must be from 1 to " + Codec.MAX_FORMAT_ID + ", but was " + formatId);
+        }
+        codecs[formatId] = codec;
+        return this;
+    }
+
+    /**
+     * @param formatId the format ID
+     * @return the codec for the format ID
+     * @throws IllegalArgumentException if there is no codec for the format ID
+     */
+    public Codec<T> get(int formatId) {
+        final Codec<T> codec = formatId >= 0 && formatId <= Codec.MAX_FORMAT_ID ? codecs[formatId] : null;
+        if (codec == null) {
+            throw new IllegalArgumentException("no codec for format " + formatId);
+        }
+        return codec;
+    }
+
+    @Override
+    public Codec<T> apply(int formatId) {
+        return get(formatId);
+    }
+
+    /**
+     * @return the codec for format ID 0
+     */
+    public Codec<T> getDefault() {
+        return codecs[Codec.FORMAT_DEFAULT];
+    }
+}
@@ -0,0 +1,45 @@
+package xyz.mattring.crystan.codec;
+
+import xyz.mattring.crystan.json.JsonConverter;
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+/**
+ * JSON codec, using the compact, byte based JsonConverter methods.
+ *
+ * @param <T> the type of the message
+ */
+public class JsonCodec<T> implements Codec<T>, JsonConverter {
+
+    public static final byte FORMAT_ID = 1;
+
+    private final Class<T> type;
+
+    public JsonCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public byte formatId() {
+        return FORMAT_ID;
+    }
+
+    @Override
+    public byte[] encode(T msg) {
+        return toJsonBytes(msg);
+    }
+
+    @Override
+    public boolean encodesInPlace() {
+        return true;
+    }
+
+    @Override
+    public void encodeTo(T msg, ByteArrayOutput out) {
+        writeJson(msg, out);
+    }
+
+    @Override
+    public T decode(byte[] bytes, int offset, int length) {
+        return fromJson(bytes, offset, length, type);
+    }
+}
@@ -1,29 +1,58 @@
 package xyz.mattring.crystan.json;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
 import xyz.mattring.crystan.cache.PartsCache;
+import xyz.mattring.crystan.util.ByteArrayOutput;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts between message objects and JSON.
+ * <p>
+ * The byte[] methods let Jackson read and write UTF-8 directly, without an intermediate String.
+ * The JSON is compact; use toPrettyJson for human readable output.
+ */
 public interface JsonConverter {
 
+    PartsCache.Key<ObjectMapper> MAPPER = new PartsCache.Key<>("mapper");
+    PartsCache.Key<ClassValue<ObjectReader>> READERS = new PartsCache.Key<>("readers");
+    PartsCache.Key<ObjectWriter> WRITER = new PartsCache.Key<>("writer");
+    PartsCache.Key<ObjectWriter> PRETTY_WRITER = new PartsCache.Key<>("pretty_writer");
+
     default ObjectMapper getObjectMapper() {
-        final String cacheKey = "mapper_" + System.identityHashCode(this);
-        return (ObjectMapper) PartsCache.computeIfAbsent(
-                cacheKey, key -> new ObjectMapper());
+        return PartsCache.computeIfAbsent(this, MAPPER, owner -> new ObjectMapper());
     }
 
     default <T> ObjectReader getObjectReader(Class<T> clazz) {
-        final String cacheKey = clazz.getSimpleName() + "_reader_" + System.identityHashCode(this);
-        return (ObjectReader) PartsCache.computeIfAbsent(
-                cacheKey, key -> getObjectMapper().readerFor(clazz));
+        return PartsCache.computeIfAbsent(this, READERS, JsonConverter::createReaders).get(clazz);
+    }
+
+    /**
+     * @return the per class readers of this converter, keyed by the Class itself rather than its name
+     */
+    private static ClassValue<ObjectReader> createReaders(JsonConverter owner) {
+        final ObjectMapper mapper = owner.getObjectMapper();
+        return new ClassValue<>() {
+            @Override
+            protected ObjectReader computeValue(Class<?> clazz) {
+                return mapper.readerFor(clazz);
+            }
+        };
     }
 
     default ObjectWriter getObjectWriter() {
-        final String cacheKey = "writer_" + System.identityHashCode(this);
-        return (ObjectWriter) PartsCache.computeIfAbsent(
-                cacheKey, key -> getObjectMapper().writer().withDefaultPrettyPrinter());
+        return PartsCache.computeIfAbsent(this, WRITER,
+                owner -> owner.getObjectMapper().writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+    }
+
+    default ObjectWriter getPrettyObjectWriter() {
+        return PartsCache.computeIfAbsent(this, PRETTY_WRITER,
+                owner -> owner.getObjectMapper().writer().withDefaultPrettyPrinter());
     }
 
     default <T> T fromJson(String json, Class<T> clazz) {
@@ -34,6 +63,21 @@ public interface JsonConverter {
         }
     }
 
+    default <T> T fromJson(byte[] json, Class<T> clazz) {
+        return fromJson(json, 0, json.length, clazz);
+    }
+
+    /**
+     * Reads UTF-8 JSON from part of a byte array, e.g. a message payload after its Job ID header.
+     */
+    default <T> T fromJson(byte[] json, int offset, int length, Class<T> clazz) {
+        try {
+            return getObjectReader(clazz).readValue(json, offset, length);
+        } catch (IOException ioex) {
+            throw new RuntimeException(ioex);
+        }
+    }
+
     default String toJson(Object obj) {
         try {
             return getObjectWriter().writeValueAsString(obj);
@@ -42,4 +86,45 @@ public interface JsonConverter {
         }
     }
 
+    default String toPrettyJson(Object obj) {
+        try {
+            return getPrettyObjectWriter().writeValueAsString(obj);
+        } catch (JsonProcessingException jpex) {
+            throw new RuntimeException(jpex);
+        }
+    }
+
+    /**
+     * @return the object as UTF-8 JSON bytes
+     */
+    default byte[] toJsonBytes(Object obj) {
+        try {
+            return getObjectWriter().writeValueAsBytes(obj);
+        } catch (JsonProcessingException jpex) {
+            throw new RuntimeException(jpex);
+        }
+    }
+
+    /**
+     * Like toJsonBytes, but writes into a reusable buffer, which is reset first.
+     *
+     * @return an exact size copy of the buffer content
+     */
+    default byte[] toJsonBytes(Object obj, ByteArrayOutput buffer) {
+        buffer.reset();
+        writeJson(obj, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes the object as UTF-8 JSON to the stream, which is left open.
+     */
+    default void writeJson(Object obj, OutputStream out) {
+        try {
+            getObjectWriter().writeValue(out, obj);
+        } catch (IOException ioex) {
+            throw new RuntimeException(ioex);
+        }
+    }
+
 }
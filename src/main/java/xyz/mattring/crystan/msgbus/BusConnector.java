@@ -1,26 +1,69 @@
 package xyz.mattring.crystan.msgbus;
 
 import io.nats.client.Connection;
-import io.nats.client.Nats;
 import io.nats.client.Options;
 import xyz.mattring.crystan.cache.PartsCache;
 
-import java.io.IOException;
+import java.util.List;
 
 public interface BusConnector {
 
+    PartsCache.Key<ConnectionPool> CONNECTION_POOL = new PartsCache.Key<>("connection_pool");
+
     default Options getOptions() {
         return new Options.Builder().build();
     }
 
+    /**
+     * Override this method to give the component a pool of several NATS connections.
+     *
+     * @return the number of pooled connections, defaults to 1
+     */
+    default int getConnectionPoolSize() {
+        return 1;
+    }
+
+    /**
+     * Returns the component's connection pool, which is connected on first use.
+     *
+     * @return the pool of getConnectionPoolSize() connections
+     */
+    default ConnectionPool getConnectionPool() {
+        return PartsCache.computeIfAbsent(this, CONNECTION_POOL, owner -> ConnectionPool.connect(owner.getOptions(), owner.getConnectionPoolSize()));
+    }
+
+    /**
+     * @return the first connection of the pool, used for subscriptions
+     */
     default Connection getConnection() {
-        final String cacheKey = "conn_" + System.identityHashCode(this);
-        return (Connection) PartsCache.computeIfAbsent(cacheKey, key -> {
-            try {
-                return Nats.connect(getOptions());
-            } catch (IOException | InterruptedException ex) {
-                throw new RuntimeException(ex);
-            }
-        });
+        return getConnectionPool().get(0);
+    }
+
+    /**
+     * Returns a pooled connection for publishing. Messages with the same stripe go through the same connection,
+     * so they keep their order.
+     *
+     * @param stripe e.g. a thread ID or a client's Job ID hash
+     * @return the connection for the stripe
+     */
+    default Connection getConnection(int stripe) {
+        return getConnectionPoolSize() == 1 ? getConnection() : getConnectionPool().get(stripe);
+    }
+
+    /**
+     * @return all pooled connections
+     */
+    default List<Connection> getConnections() {
+        return getConnectionPoolSize() == 1 ? List.of(getConnection()) : getConnectionPool().connections();
+    }
+
+    /**
+     * Closes the component's connections, if they were connected. The next getConnection() connects again.
+     */
+    default void closeConnections() {
+        final ConnectionPool pool = PartsCache.remove(this, CONNECTION_POOL);
+        if (pool != null) {
+            pool.close();
+        }
     }
 }
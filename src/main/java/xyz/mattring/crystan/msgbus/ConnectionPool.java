@@ -0,0 +1,104 @@
+package xyz.mattring.crystan.msgbus;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed set of NATS connections, so that publishing is not limited by the outbound writer of a single connection.
+ * <p>
+ * Publishers pick a connection by a stripe, e.g. their thread or a client's Job ID hash,
+ * so messages with the same stripe keep their order.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final List<Connection> connections;
+
+    public ConnectionPool(List<Connection> connections) {
+        if (connections.isEmpty()) {
+            throw new IllegalArgumentException("connections must not be empty");
+        }
+        this.connections = List.copyOf(connections);
+    }
+
+    /**
+     * Connects size connections with the same options.
+     *
+     * @param options the NATS connection options
+     * @param size    the number of connections (at least 1)
+     * @return the pool
+     */
+    public static ConnectionPool connect(Options options, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        final List<Connection> connections = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                connections.add(Nats.connect(options));
+            }
+        } catch (IOException | InterruptedException ex) {
+            closeAll(connections);
+            throw new RuntimeException(ex);
+        }
+        return new ConnectionPool(connections);
+    }
+
+    /**
+     * @param stripe any int, e.g. a hash
+     * @return the connection for the stripe
+     */
+    public Connection get(int stripe) {
+        return connections.get(Math.floorMod(stripe, connections.size()));
+    }
+
+    /**
+     * @return the connection for the calling thread
+     */
+    public Connection forCurrentThread() {
+        return get((int) Thread.currentThread().threadId());
+    }
+
+    public List<Connection> connections() {
+        return connections;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Flushes the outgoing buffers of all connections, without waiting for the server.
+     */
+    public void flushBuffers() {
+        for (Connection conn : connections) {
+            try {
+                conn.flushBuffer();
+            } catch (IOException ioex) {
+                // not connected, the NATS client sends the buffered messages when it reconnects
+            }
+        }
+    }
+
+    /**
+     * Closes all connections.
+     */
+    @Override
+    public void close() {
+        closeAll(connections);
+    }
+
+    static void closeAll(List<Connection> connections) {
+        for (Connection conn : connections) {
+            try {
+                conn.close();
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
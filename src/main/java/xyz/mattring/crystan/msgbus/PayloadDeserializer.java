@@ -0,0 +1,47 @@
+package xyz.mattring.crystan.msgbus;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Deserializes a message from a view over a byte array, e.g. the payload of a NATS message after its Job ID header,
+ * so the payload does not have to be copied out first.
+ * <p>
+ * Implementations must not keep a reference to the byte array, or modify it.
+ *
+ * @param <T> the type of the message
+ */
+@FunctionalInterface
+public interface PayloadDeserializer<T> {
+
+    /**
+     * @param bytes  the byte array
+     * @param offset the start of the payload
+     * @param length the length of the payload
+     * @return the message
+     */
+    T deserialize(byte[] bytes, int offset, int length);
+
+    /**
+     * Adapts a whole-array deserializer.
+     * The array is passed through when the view covers all of it, otherwise the view is copied.
+     *
+     * @param deserializer the whole-array deserializer
+     * @return payload deserializer
+     */
+    static <T> PayloadDeserializer<T> of(Function<byte[], T> deserializer) {
+        return (bytes, offset, length) -> deserializer.apply(
+                offset == 0 && length == bytes.length ? bytes : Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+
+    /**
+     * Adapts a ByteBuffer deserializer, which gets a read-only slice over the view, without copying.
+     *
+     * @param deserializer the ByteBuffer deserializer
+     * @return payload deserializer
+     */
+    static <T> PayloadDeserializer<T> ofByteBuffer(Function<ByteBuffer, T> deserializer) {
+        return (bytes, offset, length) -> deserializer.apply(ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer());
+    }
+}
@@ -1,7 +1,11 @@
 package xyz.mattring.crystan.msgbus;
 
 import io.nats.client.Connection;
+import io.nats.client.impl.Headers;
+import xyz.mattring.crystan.util.BufferPool;
+import xyz.mattring.crystan.util.ByteArrayOutput;
 
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 public interface Publisher<T> {
@@ -10,4 +14,52 @@ public interface Publisher<T> {
         conn.publish(topic, msgTransformer.apply(msg));
     }
 
+    /**
+     * Publishes with a reply subject, so the receiver can respond directly to it.
+     *
+     * @param replyTo the reply subject, or null for none
+     */
+    default void publish(T msg, Function<T, byte[]> msgTransformer, String topic, String replyTo, Connection conn) {
+        conn.publish(topic, replyTo, msgTransformer.apply(msg));
+    }
+
+    /**
+     * Publishes with NATS headers, and an optional reply subject.
+     *
+     * @param headersTransformer creates the headers for the message
+     * @param replyTo            the reply subject, or null for none
+     */
+    default void publish(T msg, Function<T, Headers> headersTransformer, Function<T, byte[]> msgTransformer, String topic, String replyTo, Connection conn) {
+        conn.publish(topic, replyTo, headersTransformer.apply(msg), msgTransformer.apply(msg));
+    }
+
+    /**
+     * Publishes a message that is written into a pooled buffer, with optional headers and reply subject.
+     * <p>
+     * The NATS client keeps a reference to the published byte array until it is written to the socket,
+     * so the buffer content is copied into one exact size array, and the buffer is released right away.
+     * That copy is the only allocation, unless the writer allocates.
+     *
+     * @param msgWriter writes the message into the buffer
+     * @param headers   the headers, or null for none
+     * @param replyTo   the reply subject, or null for none
+     */
+    default void publishPooled(T msg, BiConsumer<T, ByteArrayOutput> msgWriter, Headers headers, String topic, String replyTo, Connection conn) {
+        final BufferPool bufferPool = getBufferPool();
+        final ByteArrayOutput buffer = bufferPool.acquire();
+        try {
+            msgWriter.accept(msg, buffer);
+            conn.publish(topic, replyTo, headers, buffer.toByteArray());
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return the buffer pool for publishPooled
+     */
+    default BufferPool getBufferPool() {
+        return BufferPool.shared();
+    }
+
 }
@@ -2,21 +2,80 @@ package xyz.mattring.crystan.msgbus;
 
 import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
 import io.nats.client.Subscription;
 import xyz.mattring.crystan.util.Tuple2;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public interface Subscriber<T> {
 
     default Tuple2<Dispatcher, Subscription> subscribe(Consumer<T> msgConsumer, Function<byte[], T> msgTransformer, String topic, Connection conn) {
+        return subscribeToMessages(msgConsumer, msg -> msgTransformer.apply(msg.getData()), topic, conn);
+    }
+
+    /**
+     * Like subscribe, but as a member of a NATS queue group: each message goes to only one member of the group.
+     */
+    default Tuple2<Dispatcher, Subscription> subscribe(Consumer<T> msgConsumer, Function<byte[], T> msgTransformer, String topic, String queueGroup, Connection conn) {
+        return subscribeToMessages(msgConsumer, msg -> msgTransformer.apply(msg.getData()), topic, queueGroup, conn);
+    }
+
+    /**
+     * Like subscribe, but the deserializer gets a view over the NATS message data, instead of the byte array itself.
+     */
+    default Tuple2<Dispatcher, Subscription> subscribeToPayloads(Consumer<T> msgConsumer, PayloadDeserializer<T> payloadDeserializer, String topic, Connection conn) {
+        return subscribeToMessages(msgConsumer, msg -> {
+            final byte[] data = msg.getData();
+            return payloadDeserializer.deserialize(data, 0, data.length);
+        }, topic, conn);
+    }
+
+    /**
+     * Like subscribe, but the transformer gets the whole NATS message, e.g. to read its reply subject.
+     */
+    default Tuple2<Dispatcher, Subscription> subscribeToMessages(Consumer<T> msgConsumer, Function<Message, T> msgTransformer, String topic, Connection conn) {
+        return subscribeToMessages(msgConsumer, msgTransformer, topic, null, conn);
+    }
+
+    /**
+     * Like subscribeToMessages, but as a member of a NATS queue group, when queueGroup is non-null.
+     * Each message goes to only one member of the group, so servers in the same group share the load.
+     */
+    default Tuple2<Dispatcher, Subscription> subscribeToMessages(Consumer<T> msgConsumer, Function<Message, T> msgTransformer, String topic, String queueGroup, Connection conn) {
         final Dispatcher dispatcher = conn.createDispatcher((msg) -> {
         });
-        final Subscription subscription = dispatcher.subscribe(topic, (msg) -> {
-            msgConsumer.accept(msgTransformer.apply(msg.getData()));
-        });
+        final MessageHandler handler = (msg) -> {
+            msgConsumer.accept(msgTransformer.apply(msg));
+        };
+        final Subscription subscription = queueGroup != null
+                ? dispatcher.subscribe(topic, queueGroup, handler)
+                : dispatcher.subscribe(topic, handler);
         return new Tuple2<>(dispatcher, subscription);
     }
 
+    /**
+     * Like subscribeToMessages, but over a pool of connections. With a queue group, each connection subscribes
+     * as a member of the group, which spreads the incoming messages across the connections.
+     * Without one, only the first connection subscribes, so each message is received once.
+     */
+    default List<Tuple2<Dispatcher, Subscription>> subscribeToMessages(Consumer<T> msgConsumer, Function<Message, T> msgTransformer, String topic, String queueGroup, List<Connection> conns) {
+        final List<Connection> subscribingConns = queueGroup != null ? conns : conns.subList(0, 1);
+        final List<Tuple2<Dispatcher, Subscription>> subParts = new ArrayList<>(subscribingConns.size());
+        for (Connection conn : subscribingConns) {
+            subParts.add(subscribeToMessages(msgConsumer, msgTransformer, topic, queueGroup, conn));
+        }
+        return subParts;
+    }
+
+    static void unsubscribeAll(List<Tuple2<Dispatcher, Subscription>> subParts) {
+        for (Tuple2<Dispatcher, Subscription> parts : subParts) {
+            parts._1().unsubscribe(parts._2());
+        }
+    }
+
 }
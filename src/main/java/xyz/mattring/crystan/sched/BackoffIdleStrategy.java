@@ -0,0 +1,64 @@
+package xyz.mattring.crystan.sched;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Backs off from spinning, to yielding, to parking for exponentially longer periods, up to maxParkNanos.
+ * Any work done resets the backoff.
+ * <p>
+ * Not thread safe, use one instance per polling thread.
+ */
+public class BackoffIdleStrategy implements IdleStrategy {
+
+    public static final long DEFAULT_MAX_SPINS = 10L;
+    public static final long DEFAULT_MAX_YIELDS = 5L;
+    public static final long DEFAULT_MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1L);
+    public static final long DEFAULT_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    private final long maxSpins;
+    private final long maxYields;
+    private final long minParkNanos;
+    private final long maxParkNanos;
+    private long spins;
+    private long yields;
+    private long parkNanos;
+
+    public BackoffIdleStrategy() {
+        this(DEFAULT_MAX_SPINS, DEFAULT_MAX_YIELDS, DEFAULT_MIN_PARK_NANOS, DEFAULT_MAX_PARK_NANOS);
+    }
+
+    public BackoffIdleStrategy(long maxSpins, long maxYields, long minParkNanos, long maxParkNanos) {
+        if (maxSpins < 0 || maxYields < 0 || minParkNanos < 1 || maxParkNanos < minParkNanos) {
+            throw new IllegalArgumentException("invalid backoff settings");
+        }
+        this.maxSpins = maxSpins;
+        this.maxYields = maxYields;
+        this.minParkNanos = minParkNanos;
+        this.maxParkNanos = maxParkNanos;
+        this.parkNanos = minParkNanos;
+    }
+
+    @Override
+    public void idle(int workCount) {
+        if (workCount > 0) {
+            reset();
+        } else if (spins < maxSpins) {
+            spins++;
+            Thread.onSpinWait();
+        } else if (yields < maxYields) {
+            yields++;
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+        }
+    }
+
+    @Override
+    public void reset() {
+        spins = 0L;
+        yields = 0L;
+        parkNanos = minParkNanos;
+    }
+}
@@ -0,0 +1,149 @@
+package xyz.mattring.crystan.sched;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel for large numbers of timeouts that are usually cancelled before they expire,
+ * like the timeouts of in-flight requests.
+ * <p>
+ * Scheduling and cancelling are O(1) and can be done from any thread.
+ * Expiry is driven by a single thread calling {@link #expire}, e.g. a periodic side work task,
+ * so timeouts fire up to about one tick late, but never early.
+ *
+ * @param <K> the type of the key that identifies what timed out
+ */
+public class HashedTimingWheel<K> {
+
+    public static final class Timeout<K> {
+        final K key;
+        final long deadlineNanos;
+        long remainingRounds;
+        volatile boolean cancelled;
+
+        Timeout(K key, long deadlineNanos) {
+            this.key = key;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Cancels the timeout. It is removed from the wheel lazily, when its bucket comes round.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout<K>>[] buckets;
+    private final Queue<Timeout<K>> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos;
+    private long tick;
+
+    /**
+     * @param tickDuration the wheel resolution
+     * @param wheelSize    the number of buckets (rounded up to a power of 2), one round of the wheel is tickDuration * wheelSize
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(Duration tickDuration, int wheelSize) {
+        this.tickNanos = tickDuration.toNanos();
+        if (tickNanos <= 0L || wheelSize < 1 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("tickDuration must be positive and wheelSize must be between 1 and 2^30");
+        }
+        final int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = (List<Timeout<K>>[]) new List<?>[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.startNanos = System.nanoTime();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Schedules a timeout. Thread safe.
+     *
+     * @param key   identifies what timed out, handed to the expire callback
+     * @param delay the time until the timeout expires
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout<K> schedule(K key, Duration delay) {
+        final Timeout<K> timeout = new Timeout<>(key, System.nanoTime() + delay.toNanos());
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel to nowNanos, and hands the keys of the expired timeouts to onExpire.
+     * Must only be called by one thread.
+     *
+     * @param nowNanos the current System.nanoTime()
+     * @param onExpire receives the keys of the timeouts that expired
+     * @return the number of timeouts that expired
+     */
+    public int expire(long nowNanos, Consumer<K> onExpire) {
+        // only process the ticks that have fully passed, so timeouts never fire early
+        final long passedTicks = (nowNanos - startNanos) / tickNanos;
+        int numExpired = 0;
+        while (tick < passedTicks) {
+            transferPending();
+            numExpired += expireBucket(buckets[(int) (tick & mask)], onExpire);
+            tick++;
+        }
+        return numExpired;
+    }
+
+    private void transferPending() {
+        Timeout<K> timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // never place a timeout in a bucket that has already been passed
+            final long deadlineTick = Math.max((timeout.deadlineNanos - startNanos) / tickNanos, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private int expireBucket(List<Timeout<K>> bucket, Consumer<K> onExpire) {
+        int numExpired = 0;
+        int i = 0;
+        while (i < bucket.size()) {
+            final Timeout<K> timeout = bucket.get(i);
+            boolean remove = timeout.cancelled;
+            if (!remove && timeout.remainingRounds <= 0L) {
+                remove = true;
+                numExpired++;
+                onExpire.accept(timeout.key);
+            } else if (!remove) {
+                timeout.remainingRounds--;
+            }
+            if (remove) {
+                // swap remove, the order within a bucket does not matter
+                final int last = bucket.size() - 1;
+                bucket.set(i, bucket.get(last));
+                bucket.remove(last);
+            } else {
+                i++;
+            }
+        }
+        return numExpired;
+    }
+}
@@ -0,0 +1,19 @@
+package xyz.mattring.crystan.sched;
+
+/**
+ * Decides what a polling loop does when there was no work on its last pass.
+ */
+public interface IdleStrategy {
+
+    /**
+     * Called after each pass of a polling loop.
+     *
+     * @param workCount the amount of work done in the last pass, idling only happens when it is 0
+     */
+    void idle(int workCount);
+
+    /**
+     * Resets any backoff state, so the next idle starts from the most responsive step again.
+     */
+    void reset();
+}
@@ -0,0 +1,108 @@
+package xyz.mattring.crystan.sched;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Runs periodic side work tasks on a component's main run() thread,
+ * and idles that thread with an {@link IdleStrategy} when there is nothing to do.
+ * <p>
+ * Tasks can be scheduled from any thread, but they only ever run on the thread that calls {@link #runWhile}.
+ */
+public class SideWorkScheduler {
+
+    static class PeriodicTask {
+        final Runnable task;
+        final long periodNanos;
+        long nextRunNanos;
+
+        PeriodicTask(Runnable task, long periodNanos, long nextRunNanos) {
+            this.task = task;
+            this.periodNanos = periodNanos;
+            this.nextRunNanos = nextRunNanos;
+        }
+    }
+
+    private final List<PeriodicTask> tasks = new CopyOnWriteArrayList<>();
+    private volatile IdleStrategy idleStrategy = new BackoffIdleStrategy();
+    private volatile Thread runner;
+
+    /**
+     * Schedules a task to run every period, starting one period from now.
+     * Tasks must be short, as they delay the other side work.
+     *
+     * @param task   the task to run
+     * @param period the time between runs
+     */
+    public void schedulePeriodic(Runnable task, Duration period) {
+        final long periodNanos = period.toNanos();
+        if (periodNanos <= 0L) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        tasks.add(new PeriodicTask(task, periodNanos, System.nanoTime() + periodNanos));
+    }
+
+    /**
+     * Sets the idle strategy. Must be called BEFORE the owning component is started.
+     *
+     * @param idleStrategy the idle strategy
+     */
+    public void setIdleStrategy(IdleStrategy idleStrategy) {
+        this.idleStrategy = idleStrategy;
+    }
+
+    /**
+     * Runs all tasks that are due.
+     *
+     * @return the number of tasks that ran
+     */
+    public int doWork() {
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        int workCount = 0;
+        for (PeriodicTask t : tasks) {
+            if (now - t.nextRunNanos >= 0L) {
+                t.nextRunNanos = now + t.periodNanos;
+                t.task.run();
+                workCount++;
+            }
+        }
+        return workCount;
+    }
+
+    /**
+     * Runs the side work on the calling thread until keepRunning returns false,
+     * idling between passes that did no work.
+     *
+     * @param keepRunning usually reads the component's volatile running flag
+     * @param sideWork    one pass of the component's side work, returning the amount of work done
+     */
+    public void runWhile(BooleanSupplier keepRunning, IntSupplier sideWork) {
+        final IdleStrategy idler = idleStrategy;
+        runner = Thread.currentThread();
+        try {
+            idler.reset();
+            while (keepRunning.getAsBoolean()) {
+                idler.idle(sideWork.getAsInt());
+            }
+        } finally {
+            runner = null;
+        }
+    }
+
+    /**
+     * Wakes the running thread if it is parked, e.g. after new work arrived or the component was stopped.
+     */
+    public void wake() {
+        final Thread t = runner;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
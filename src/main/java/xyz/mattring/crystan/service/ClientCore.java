@@ -1,107 +1,601 @@
 package xyz.mattring.crystan.service;
 
+import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
+import io.nats.client.Message;
+import io.nats.client.NUID;
 import io.nats.client.Subscription;
+import xyz.mattring.crystan.cache.PartsCache;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.codec.CodecRegistry;
 import xyz.mattring.crystan.msgbus.BusConnector;
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
 import xyz.mattring.crystan.msgbus.Publisher;
 import xyz.mattring.crystan.msgbus.Subscriber;
+import xyz.mattring.crystan.sched.HashedTimingWheel;
+import xyz.mattring.crystan.sched.SideWorkScheduler;
 import xyz.mattring.crystan.util.Tuple2;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class ClientCore<A, B> implements BusConnector, Publisher<TrackedMsg<A>>, Subscriber<TrackedMsg<B>>, Runnable {
 
+    /**
+     * A request that is waiting for its response.
+     */
+    static class PendingRequest<A, B> {
+        /**
+         * Sent without a concurrency limiter.
+         */
+        static final int UNLIMITED = 0;
+        /**
+         * Waiting in limitedRequests for a permit.
+         */
+        static final int QUEUED = 1;
+        /**
+         * Sent with a permit, which its completion gives back.
+         */
+        static final int SENT = 2;
+        /**
+         * Completed, or timed out while queued.
+         */
+        static final int DONE = 3;
+        @SuppressWarnings("rawtypes")
+        static final AtomicIntegerFieldUpdater<PendingRequest> STATE = AtomicIntegerFieldUpdater.newUpdater(PendingRequest.class, "state");
+
+        final long jobSeq;
+        final A req;
+        final Consumer<B> respHandler;
+        final Consumer<A> overloadHandler;
+        final Consumer<A> failureHandler;
+        final Consumer<A> timeoutHandler;
+        HashedTimingWheel.Timeout<PendingRequest<A, B>> timeout;
+        /**
+         * When the request was sent with a concurrency limiter permit.
+         * Written before state becomes SENT, and only read after seeing SENT.
+         */
+        long sentNanos;
+        volatile int state = UNLIMITED;
+
+        PendingRequest(long jobSeq, A req, Consumer<B> respHandler, Consumer<A> overloadHandler) {
+            this(jobSeq, req, respHandler, overloadHandler, null, null);
+        }
+
+        PendingRequest(long jobSeq, A req, Consumer<B> respHandler, Consumer<A> overloadHandler, Consumer<A> failureHandler, Consumer<A> timeoutHandler) {
+            this.jobSeq = jobSeq;
+            this.req = req;
+            this.respHandler = respHandler;
+            this.overloadHandler = overloadHandler;
+            this.failureHandler = failureHandler;
+            this.timeoutHandler = timeoutHandler;
+        }
+    }
+
+    static final Duration TIMEOUT_TICK = Duration.ofMillis(10);
+    static final int TIMEOUT_WHEEL_SIZE = 512;
+    static final int IN_FLIGHT_SLOTS = 1 << 14;
+    /**
+     * The timeout of requests sent with a concurrency limiter, when the caller gives none.
+     */
+    public static final Duration DEFAULT_LIMITED_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
     final String sendReqSubject;
     final String rcvRespSubject;
-    final Function<A, byte[]> reqMsgSerializer;
-    final Function<byte[], B> respMsgDeserializer;
-    final Map<String, Consumer<B>> registeredRespHandlers;
+    String replyInbox;
+    boolean jobIdInHeaders;
+    final Codec<A> reqCodec;
+    final CodecRegistry<B> respCodecs;
+    final InFlightTable<PendingRequest<A, B>> registeredRespHandlers = new InFlightTable<>(IN_FLIGHT_SLOTS, pendingRequest -> pendingRequest.jobSeq);
+    final LongAdder numOverloaded = new LongAdder();
+    final LongAdder numFailed = new LongAdder();
+    final LongAdder numTimedOut = new LongAdder();
+    final HashedTimingWheel<PendingRequest<A, B>> timeouts = new HashedTimingWheel<>(TIMEOUT_TICK, TIMEOUT_WHEEL_SIZE);
     final JobIdGenerator jobIdGenerator;
-    boolean running = false;
+    final int clientHash;
+    final String jobHeaderPrefix;
+    final SideWorkScheduler sideWorkScheduler = new SideWorkScheduler();
+    volatile boolean running = false;
+    boolean timeoutTaskScheduled = false;
+    int connectionPoolSize = 1;
+    ConcurrencyLimiter concurrencyLimiter;
+    OverloadPolicy limitPolicy = OverloadPolicy.BLOCK;
+    Duration limitedRequestTimeout = DEFAULT_LIMITED_REQUEST_TIMEOUT;
+    final Queue<PendingRequest<A, B>> limitedRequests = new ConcurrentLinkedQueue<>();
+    final LongAdder numLimited = new LongAdder();
 
     public ClientCore(String sendReqSubject, String rcvRespSubject, Function<A, byte[]> reqMsgSerializer, Function<byte[], B> respMsgDeserializer) {
+        this(sendReqSubject, rcvRespSubject, reqMsgSerializer, PayloadDeserializer.of(respMsgDeserializer));
+    }
+
+    /**
+     * Creates a client whose response deserializer reads the response payload in place,
+     * from a view over the NATS message data, so the payload is never copied.
+     */
+    public ClientCore(String sendReqSubject, String rcvRespSubject, Function<A, byte[]> reqMsgSerializer, PayloadDeserializer<B> respMsgDeserializer) {
+        this(sendReqSubject, rcvRespSubject, Codec.of(Codec.FORMAT_DEFAULT, reqMsgSerializer, null), Codec.of(Codec.FORMAT_DEFAULT, null, respMsgDeserializer));
+    }
+
+    /**
+     * Creates a client that encodes its requests with reqCodec, and tells the servers which format they are in.
+     * The servers answer in the same format, so the responses are decoded with respCodec.
+     *
+     * @param reqCodec  the request codec
+     * @param respCodec the response codec, with the same format ID
+     */
+    public ClientCore(String sendReqSubject, String rcvRespSubject, Codec<A> reqCodec, Codec<B> respCodec) {
+        if (reqCodec.formatId() != respCodec.formatId()) {
+            throw new IllegalArgumentException("reqCodec and respCodec must have the same formatId");
+        }
         this.sendReqSubject = sendReqSubject;
         this.rcvRespSubject = rcvRespSubject;
-        this.reqMsgSerializer = reqMsgSerializer;
-        this.respMsgDeserializer = respMsgDeserializer;
-        this.registeredRespHandlers = new ConcurrentHashMap<>(); // TODO: expire handlers that never got a response?
+        this.reqCodec = reqCodec;
+        this.respCodecs = new CodecRegistry<>(respCodec);
         // TODO: make clientId configurable
         final String clientId =
-                this.getClass().getSimpleName() + "-" + ThreadLocalRandom.current().nextInt(1000);
+                this.getClass().getSimpleName() + "-" + Integer.toHexString(ThreadLocalRandom.current().nextInt());
         this.jobIdGenerator = new JobIdGenerator(clientId);
+        this.clientHash = jobIdGenerator.getClientHash();
+        this.jobHeaderPrefix = JobIdSerdeHelper.binaryJobIdPrefix(clientHash);
     }
 
     @Override
     public void run() {
         Tuple2<Dispatcher, Subscription> subParts = null;
         try {
+            if (!timeoutTaskScheduled) {
+                sideWorkScheduler.schedulePeriodic(this::expireTimedOutRequests, TIMEOUT_TICK);
+                timeoutTaskScheduled = true;
+            }
             running = true;
-            subParts = subscribe(
+            subParts = subscribeToMessages(
                     this::processTrackedResponse,
                     this::deserializeTrackedResponse,
-                    rcvRespSubject,
+                    getResponseSubject(),
                     getConnection());
-            while (running) {
-                performSideWork();
-            }
+            sideWorkScheduler.runWhile(() -> running, this::performSideWork);
         } finally {
             running = false;
             if (subParts != null) {
                 subParts._1().unsubscribe(subParts._2());
             }
+            closeConnections();
+            PartsCache.evict(this);
         }
     }
 
     public void stop() {
         running = false;
+        sideWorkScheduler.wake();
+    }
+
+    /**
+     * Turns private reply routing on or off.
+     * <p>
+     * When on, the client gets its own reply inbox subject, which it sends with every request as the NATS reply subject.
+     * The servers publish the responses to that inbox, so the client only sees its own responses,
+     * instead of every response on the shared rcvRespSubject.
+     * Only use this with servers that honor the reply subject, like the Crystan servers.
+     * <p>
+     * This method must be called BEFORE the client is started.
+     *
+     * @param privateReplyInbox true to use a private reply inbox
+     */
+    public void setPrivateReplyInbox(boolean privateReplyInbox) {
+        if (!running) {
+            this.replyInbox = privateReplyInbox ? getOptions().getInboxPrefix() + NUID.nextGlobal() : null;
+        }
     }
 
+    /**
+     * Turns NATS header mode on or off.
+     * <p>
+     * When on, the Job ID travels in NATS message headers instead of being prepended to the payload,
+     * so the serialized request and response payloads are not copied. The servers answer in the same mode.
+     * <p>
+     * This method must be called BEFORE the client is started.
+     *
+     * @param jobIdInHeaders true to send the Job ID in NATS headers
+     */
+    public void setJobIdInHeaders(boolean jobIdInHeaders) {
+        if (!running) {
+            this.jobIdInHeaders = jobIdInHeaders;
+        }
+    }
+
+    /**
+     * Limits the number of requests in flight, with a limit that adapts to the response latency.
+     * <p>
+     * Past the limit, OverloadPolicy.BLOCK queues the request in the client until a response frees a permit
+     * (the caller is not blocked, and the request's timeout keeps running),
+     * and OverloadPolicy.REJECT hands it straight to its overload handler, as if the server had rejected it.
+     * <p>
+     * Every limited request needs a timeout, or a lost response would keep its permit forever.
+     * Requests sent without one, e.g. with sendRequest, time out after DEFAULT_LIMITED_REQUEST_TIMEOUT.
+     * <p>
+     * This method must be called BEFORE the client is started.
+     *
+     * @param concurrencyLimiter the limiter, or null (the default) for no limit
+     * @param limitPolicy        BLOCK or REJECT
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter, OverloadPolicy limitPolicy) {
+        setConcurrencyLimiter(concurrencyLimiter, limitPolicy, DEFAULT_LIMITED_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Like setConcurrencyLimiter(ConcurrencyLimiter, OverloadPolicy), with the timeout of requests sent without one.
+     * Timed out requests count against the limit like shed ones, and go to no handler when sent with sendRequest.
+     *
+     * @param concurrencyLimiter    the limiter, or null (the default) for no limit
+     * @param limitPolicy           BLOCK or REJECT
+     * @param limitedRequestTimeout the timeout of limited requests sent without one (positive)
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter, OverloadPolicy limitPolicy, Duration limitedRequestTimeout) {
+        if (limitPolicy == OverloadPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("DROP_OLDEST is not supported by the client concurrency limiter");
+        }
+        if (limitedRequestTimeout == null || limitedRequestTimeout.isNegative() || limitedRequestTimeout.isZero()) {
+            throw new IllegalArgumentException("limitedRequestTimeout must be positive");
+        }
+        if (!running) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            this.limitPolicy = limitPolicy;
+            this.limitedRequestTimeout = limitedRequestTimeout;
+        }
+    }
+
+    /**
+     * Sets the number of NATS connections. Requests are published through the connection of the calling thread,
+     * so threads sending at the same time do not share one outbound writer. Responses arrive on the first connection.
+     * <p>
+     * This method must be called BEFORE the client is started.
+     *
+     * @param connectionPoolSize at least 1, defaults to 1
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        if (connectionPoolSize < 1) {
+            throw new IllegalArgumentException("connectionPoolSize must be at least 1");
+        }
+        if (!running) {
+            this.connectionPoolSize = connectionPoolSize;
+        }
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    /**
+     * @return the subject that the client receives its responses on
+     */
+    public String getResponseSubject() {
+        return replyInbox != null ? replyInbox : rcvRespSubject;
+    }
+
+    /**
+     * Returns the scheduler for periodic side work, which runs on the run() thread.
+     * Use it to schedule tasks or to set the idle strategy BEFORE the client is started.
+     *
+     * @return the side work scheduler
+     */
+    public SideWorkScheduler getSideWorkScheduler() {
+        return sideWorkScheduler;
+    }
+
+    /**
+     * Deserializes a response, if it is for one of this client's pending requests.
+     * Responses are correlated by their binary Job ID, so there is no String decoding.
+     *
+     * @param trackedResponseMsgBytes the serialized response message
+     * @return the deserialized response message, or null if it is not for this client
+     */
     TrackedMsg<B> deserializeTrackedResponse(byte[] trackedResponseMsgBytes) {
-        TrackedMsg<B> trackedResponseMsg = null;
-        final String jobId = JobIdSerdeHelper.findJobId(trackedResponseMsgBytes);
-        if (jobId != null && registeredRespHandlers.containsKey(jobId)) {
-            // TODO: consider optimizing this by not deserializing the response if there is no handler for the jobId
-            // TODO: consider optimizing this by not extracting the jobId twice
-            final Tuple2<String, byte[]> jobIdAndPayload = JobIdSerdeHelper.splitJobIdAndPayload(trackedResponseMsgBytes);
-            final B requestMsg = respMsgDeserializer.apply(jobIdAndPayload._2());
-            trackedResponseMsg = new TrackedMsg<>(jobId, requestMsg);
+        if (!isOwnResponse(trackedResponseMsgBytes)) {
+            return null;
         }
-        return trackedResponseMsg;
+        return JobIdSerdeHelper.readFormattedTrackedMsg(trackedResponseMsgBytes, respCodecs, null);
+    }
+
+    /**
+     * Checks whether a response is for one of this client's pending requests, without decoding or allocating anything.
+     * Responses with the old String Job IDs are never for this client, which always sends binary Job IDs.
+     * A response for another client fails on its version byte or its client hash, a few byte comparisons.
+     *
+     * @param trackedResponseMsgBytes the serialized response message
+     * @return true if the response is for a pending request of this client
+     */
+    boolean isOwnResponse(byte[] trackedResponseMsgBytes) {
+        return JobIdSerdeHelper.isBinaryJobId(trackedResponseMsgBytes)
+                && JobIdSerdeHelper.readClientHash(trackedResponseMsgBytes) == clientHash
+                && registeredRespHandlers.containsKey(JobIdSerdeHelper.readJobSeq(trackedResponseMsgBytes));
+    }
+
+    /**
+     * Like isOwnResponse(byte[]), for a Job ID from the NATS headers.
+     * The client hash prefix is compared in place, so only this client's Job IDs get their sequence parsed.
+     *
+     * @param binaryJobId the JOB_HEADER value, or null
+     * @return true if the response is for a pending request of this client
+     */
+    boolean isOwnResponse(String binaryJobId) {
+        return binaryJobId != null
+                && binaryJobId.startsWith(jobHeaderPrefix)
+                && registeredRespHandlers.containsKey(JobIdSerdeHelper.parseJobSeq(binaryJobId));
+    }
+
+    /**
+     * Deserializes a response from a NATS message, if it is for one of this client's pending requests.
+     * The Job ID is read from the NATS headers if it has them, otherwise from the payload.
+     *
+     * @param natsMsg the NATS message
+     * @return the deserialized response message, or null if it is not for this client
+     */
+    TrackedMsg<B> deserializeTrackedResponse(Message natsMsg) {
+        if (!JobIdSerdeHelper.hasJobIdHeaders(natsMsg)) {
+            return deserializeTrackedResponse(natsMsg.getData());
+        }
+        if (!isOwnResponse(natsMsg.getHeaders().getFirst(JobIdSerdeHelper.JOB_HEADER))) {
+            return null;
+        }
+        return JobIdSerdeHelper.readFormattedTrackedMsg(natsMsg, respCodecs);
     }
 
     void processTrackedResponse(TrackedMsg<B> trackedResponseMsg) {
         if (trackedResponseMsg != null) {
-            final String jobId = trackedResponseMsg.getJobId();
-            final Consumer<B> respHandler = registeredRespHandlers.remove(jobId);
-            if (respHandler != null) {
-                respHandler.accept(trackedResponseMsg.getMsg());
+            final PendingRequest<A, B> pendingRequest = registeredRespHandlers.remove(trackedResponseMsg.getJobSeq());
+            if (pendingRequest == null) {
+                return;
+            }
+            if (pendingRequest.timeout != null) {
+                pendingRequest.timeout.cancel();
+            }
+            // a failed request was processed, so its latency is a fair sample, unlike a shed one
+            releasePermit(pendingRequest, !trackedResponseMsg.isOverloaded());
+            if (trackedResponseMsg.isOverloaded()) {
+                numOverloaded.increment();
+                if (pendingRequest.overloadHandler != null) {
+                    pendingRequest.overloadHandler.accept(pendingRequest.req);
+                }
+            } else if (trackedResponseMsg.isFailed()) {
+                numFailed.increment();
+                if (pendingRequest.failureHandler != null) {
+                    pendingRequest.failureHandler.accept(pendingRequest.req);
+                }
+            } else {
+                pendingRequest.respHandler.accept(trackedResponseMsg.getMsg());
             }
         }
     }
 
     public void sendRequest(A req, Consumer<B> respHandler) {
-        final String jobId = jobIdGenerator.nextJobId();
-        registeredRespHandlers.put(jobId, respHandler);
-        final TrackedMsg<A> trackedRequestMsg = new TrackedMsg<>(jobId, req);
-        publish(trackedRequestMsg, this::serializeTrackedRequest, sendReqSubject, getConnection());
+        sendRequest(req, respHandler, null);
+    }
+
+    /**
+     * Sends a request, with a handler for when the server was too busy to process it.
+     * The overload handler gets the original request back, so it can be retried after backing off.
+     *
+     * @param req             the request
+     * @param respHandler     handles the response
+     * @param overloadHandler handles the request, if the server rejected or shed it
+     */
+    public void sendRequest(A req, Consumer<B> respHandler, Consumer<A> overloadHandler) {
+        sendRequest(req, respHandler, overloadHandler, null);
+    }
+
+    /**
+     * Sends a request, with handlers for when the server was too busy to process it, and for when its business logic failed.
+     * Unlike an overloaded request, a failed one may have had side effects, so it is not safe to retry blindly.
+     *
+     * @param req             the request
+     * @param respHandler     handles the response
+     * @param overloadHandler handles the request, if the server rejected or shed it
+     * @param failureHandler  handles the request, if the server's business logic failed on it
+     */
+    public void sendRequest(A req, Consumer<B> respHandler, Consumer<A> overloadHandler, Consumer<A> failureHandler) {
+        registerAndSend(new PendingRequest<>(jobIdGenerator.nextJobSeq(), req, respHandler, overloadHandler, failureHandler, null), null);
+    }
+
+    /**
+     * Sends a request, and returns a future for its response.
+     * <p>
+     * The future completes exceptionally with a TimeoutException if there is no response within the timeout,
+     * with a ServerOverloadedException if the server rejected or shed the request,
+     * or with a ServerFailureException if the server's business logic failed on it.
+     * Timeouts are expired by the run() thread, so the client must be running.
+     *
+     * @param req     the request
+     * @param timeout how long to wait for the response
+     * @return future response
+     */
+    public CompletableFuture<B> sendRequestAsync(A req, Duration timeout) {
+        final CompletableFuture<B> future = new CompletableFuture<>();
+        final long jobSeq = jobIdGenerator.nextJobSeq();
+        final PendingRequest<A, B> pendingRequest = new PendingRequest<>(
+                jobSeq,
+                req,
+                future::complete,
+                r -> future.completeExceptionally(new ServerOverloadedException(formatJobId(jobSeq))),
+                r -> future.completeExceptionally(new ServerFailureException(formatJobId(jobSeq))),
+                r -> future.completeExceptionally(new TimeoutException("no response for job " + formatJobId(jobSeq) + " within " + timeout)));
+        registerAndSend(pendingRequest, timeout);
+        return future;
+    }
+
+    /**
+     * Registers the pending request, with an optional timeout, then publishes the request.
+     * With a concurrency limiter, a request without a timeout gets the limitedRequestTimeout,
+     * so that its permit comes back even if no response does.
+     */
+    void registerAndSend(PendingRequest<A, B> pendingRequest, Duration timeout) {
+        // the permit is settled before the request is registered, so that its completion always sees it
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        boolean queued = false;
+        if (limiter != null) {
+            if (timeout == null) {
+                timeout = limitedRequestTimeout;
+            }
+            if (limitedRequests.isEmpty() && limiter.tryAcquire()) {
+                pendingRequest.sentNanos = System.nanoTime();
+                pendingRequest.state = PendingRequest.SENT;
+            } else if (limitPolicy == OverloadPolicy.REJECT) {
+                rejectLimitedRequest(pendingRequest);
+                return;
+            } else {
+                pendingRequest.state = PendingRequest.QUEUED;
+                queued = true;
+            }
+        }
+        if (timeout != null) {
+            pendingRequest.timeout = timeouts.schedule(pendingRequest, timeout);
+        }
+        registeredRespHandlers.put(pendingRequest);
+        if (queued) {
+            limitedRequests.add(pendingRequest);
+            sendLimitedRequests(); // a permit may have been freed meanwhile
+        } else {
+            publishRequest(pendingRequest);
+        }
+    }
+
+    void publishRequest(PendingRequest<A, B> pendingRequest) {
+        final TrackedMsg<A> trackedRequestMsg = new TrackedMsg<>(clientHash, pendingRequest.jobSeq, pendingRequest.req, null, reqCodec.formatId());
+        JobIdSerdeHelper.publishTrackedMsg(this, jobIdInHeaders ? trackedRequestMsg.withJobIdInHeaders() : trackedRequestMsg,
+                reqCodec, sendReqSubject, replyInbox, publishConnection());
+    }
+
+    void rejectLimitedRequest(PendingRequest<A, B> pendingRequest) {
+        numLimited.increment();
+        if (pendingRequest.overloadHandler != null) {
+            pendingRequest.overloadHandler.accept(pendingRequest.req);
+        }
+    }
+
+    /**
+     * Sends queued requests while the concurrency limiter has permits.
+     * Each request is claimed from QUEUED to SENT, so a queued request that timed out meanwhile is skipped,
+     * and its permit given back.
+     */
+    void sendLimitedRequests() {
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        while (!limitedRequests.isEmpty() && limiter.tryAcquire()) {
+            final PendingRequest<A, B> pendingRequest = limitedRequests.poll();
+            if (pendingRequest == null) {
+                limiter.release();
+                continue;
+            }
+            pendingRequest.sentNanos = System.nanoTime();
+            if (!PendingRequest.STATE.compareAndSet(pendingRequest, PendingRequest.QUEUED, PendingRequest.SENT)) {
+                limiter.release();
+                continue;
+            }
+            publishRequest(pendingRequest);
+        }
     }
 
-    byte[] serializeTrackedRequest(TrackedMsg<A> trackedRequestMsg) {
-        return JobIdSerdeHelper.prependPayloadWithJobId(
-                trackedRequestMsg.getJobId(), reqMsgSerializer.apply(trackedRequestMsg.getMsg()));
+    /**
+     * Gives back the concurrency limiter permit of a completed request, if it has one,
+     * with its latency as a sample, then sends queued requests.
+     *
+     * @param pendingRequest the completed request
+     * @param answered       true if it got a proper response, false if it was shed or timed out
+     */
+    void releasePermit(PendingRequest<A, B> pendingRequest, boolean answered) {
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null || PendingRequest.STATE.getAndSet(pendingRequest, PendingRequest.DONE) != PendingRequest.SENT) {
+            return;
+        }
+        if (answered) {
+            limiter.onResponse(System.nanoTime() - pendingRequest.sentNanos);
+        } else {
+            limiter.onDropped();
+        }
+        sendLimitedRequests();
+    }
+
+    Connection publishConnection() {
+        return getConnection((int) Thread.currentThread().threadId());
+    }
+
+    /**
+     * Expires the requests whose timeouts have passed. Runs as periodic side work.
+     */
+    void expireTimedOutRequests() {
+        timeouts.expire(System.nanoTime(), this::expireRequest);
+    }
+
+    String formatJobId(long jobSeq) {
+        return JobIdSerdeHelper.formatBinaryJobId(clientHash, jobSeq);
+    }
+
+    void expireRequest(PendingRequest<A, B> timedOutRequest) {
+        final PendingRequest<A, B> pendingRequest = registeredRespHandlers.remove(timedOutRequest.jobSeq);
+        if (pendingRequest != null) {
+            releasePermit(pendingRequest, false);
+            numTimedOut.increment();
+            if (pendingRequest.timeoutHandler != null) {
+                pendingRequest.timeoutHandler.accept(pendingRequest.req);
+            }
+        }
     }
 
     /**
      * Override this method to perform side work in the main run() loop.
-     * By default, this method does nothing.
+     * By default, this method runs the due tasks of the side work scheduler.
+     *
+     * @return the amount of work done, 0 lets the run() thread idle
+     */
+    int performSideWork() {
+        return sideWorkScheduler.doWork();
+    }
+
+    /**
+     * Returns the number of requests that the server rejected or shed because it was overloaded.
+     * @return num long
+     */
+    public long getNumOverloaded() {
+        return numOverloaded.sum();
+    }
+
+    /**
+     * Returns the number of requests that the server's business logic failed on.
+     * @return num long
+     */
+    public long getNumFailed() {
+        return numFailed.sum();
+    }
+
+    /**
+     * Returns the number of requests that the concurrency limiter rejected, with OverloadPolicy.REJECT.
+     * @return num long
+     */
+    public long getNumLimited() {
+        return numLimited.sum();
+    }
+
+    /**
+     * Returns the number of requests that the concurrency limiter queued, and that were not sent yet.
+     * @return num int
+     */
+    public int getNumQueued() {
+        return limitedRequests.size();
+    }
+
+    /**
+     * Returns the number of requests that got no response before their timeout.
+     * @return num long
      */
-    void performSideWork() {
-        // use you imagination...
-        // TODO: make this a pluggable Runnable instead?
+    public long getNumTimedOut() {
+        return numTimedOut.sum();
     }
 
     /**
@@ -0,0 +1,153 @@
+package xyz.mattring.crystan.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An adaptive limit on the number of requests a client has in flight, driven by the observed response latency.
+ * <p>
+ * The limit grows additively, by about one per limit's worth of fast responses, while the client is using it.
+ * It shrinks multiplicatively when the smoothed latency rises well above the baseline latency (the server is queueing),
+ * and shrinks harder when requests are shed or time out. This AIMD loop keeps the in-flight requests near
+ * the point where the server is busy, but not yet queueing.
+ * <p>
+ * The smoothed latency is a short moving average of the responses, so a single slow response does not count,
+ * and the baseline is a long moving average, so it follows lasting changes in the server's latency.
+ * The limit shrinks at most once per window of about limit samples, i.e. once per round trip,
+ * since the responses that are already in flight still show the congestion the last backoff reacted to.
+ */
+public class ConcurrencyLimiter {
+
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0d;
+    public static final double LATENCY_BACKOFF = 0.9d;
+    public static final double DROP_BACKOFF = 0.5d;
+    /**
+     * The weight of each sample in the smoothed latency.
+     */
+    static final double SHORT_RTT_WEIGHT = 0.2d;
+    /**
+     * The weight of each sample in the baseline latency.
+     */
+    static final double LONG_RTT_WEIGHT = 0.01d;
+
+    final int minLimit;
+    final int maxLimit;
+    final double latencyTolerance;
+    final AtomicInteger inFlight = new AtomicInteger();
+    volatile double limit;
+    // guarded by this
+    double shortRttNanos;
+    double longRttNanos;
+    int samplesSinceBackoff;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_LATENCY_TOLERANCE);
+    }
+
+    /**
+     * @param initialLimit     the starting limit
+     * @param minLimit         the lowest limit (at least 1)
+     * @param maxLimit         the highest limit
+     * @param latencyTolerance how many times the baseline latency the smoothed latency may reach before the limit shrinks (above 1)
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if (latencyTolerance <= 1.0d) {
+            throw new IllegalArgumentException("latencyTolerance must be above 1");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = initialLimit;
+        this.samplesSinceBackoff = maxLimit; // the first backoff is not held back
+    }
+
+    /**
+     * Takes an in-flight permit, if the limit allows it.
+     * Every permit must be given back with onResponse, onDropped or release.
+     *
+     * @return true if the request may be sent now
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Gives back a permit without a latency sample, e.g. for a request that was never sent.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gives back the permit of a request that got its response, and adapts the limit to its latency.
+     *
+     * @param rttNanos the time from sending the request to receiving the response
+     */
+    public void onResponse(long rttNanos) {
+        final int inFlightBefore = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (longRttNanos == 0.0d) {
+                shortRttNanos = rttNanos;
+                longRttNanos = rttNanos;
+            } else {
+                shortRttNanos += SHORT_RTT_WEIGHT * (rttNanos - shortRttNanos);
+                longRttNanos += LONG_RTT_WEIGHT * (rttNanos - longRttNanos);
+            }
+            final double current = limit;
+            if (shortRttNanos > longRttNanos * latencyTolerance) {
+                backOff(LATENCY_BACKOFF);
+            } else {
+                samplesSinceBackoff++;
+                if (inFlightBefore * 2 >= current) {
+                    // only grow a limit that is being used
+                    limit = Math.min(maxLimit, current + 1.0d / current);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back the permit of a request that the server shed, or that timed out, and shrinks the limit.
+     */
+    public void onDropped() {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            backOff(DROP_BACKOFF);
+        }
+    }
+
+    /**
+     * Shrinks the limit by the factor, unless it already shrank within the last window of samples.
+     * Must hold the lock.
+     */
+    void backOff(double factor) {
+        final double current = limit;
+        if (samplesSinceBackoff++ >= current) {
+            limit = Math.max(minLimit, current * factor);
+            samplesSinceBackoff = 0;
+        }
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of permits taken
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,101 @@
+package xyz.mattring.crystan.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * The in-flight requests of a client, keyed by their 64-bit job sequence.
+ * <p>
+ * Job sequences increase by one per request, so a pre-sized ring of slots indexed by sequence mod capacity
+ * holds them without collisions, as long as fewer than capacity requests are in flight.
+ * Each value knows its own sequence, so a slot is checked without boxing the key.
+ * Only when a slot is still taken by an older request does the new one go to a boxed overflow map.
+ *
+ * @param <V> the type of the in-flight entries
+ */
+class InFlightTable<V> {
+
+    private final AtomicReferenceArray<V> slots;
+    private final int mask;
+    private final ToLongFunction<? super V> seqOf;
+    private final Map<Long, V> overflow = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of 2
+     * @param seqOf    returns the sequence of an entry
+     */
+    InFlightTable(int capacity, ToLongFunction<? super V> seqOf) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.seqOf = seqOf;
+    }
+
+    /**
+     * Adds an entry. Each sequence must only be added once, until it is removed.
+     *
+     * @param value the entry, whose sequence is its key
+     */
+    void put(V value) {
+        final long seq = seqOf.applyAsLong(value);
+        if (!slots.compareAndSet((int) seq & mask, null, value)) {
+            overflow.put(seq, value);
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return the entry for the sequence, or null
+     */
+    V get(long seq) {
+        final V value = slots.get((int) seq & mask);
+        if (value != null && seqOf.applyAsLong(value) == seq) {
+            return value;
+        }
+        return overflow.isEmpty() ? null : overflow.get(seq);
+    }
+
+    boolean containsKey(long seq) {
+        return get(seq) != null;
+    }
+
+    /**
+     * Removes the entry for the sequence. When two threads remove the same sequence, only one of them gets the entry.
+     *
+     * @return the removed entry, or null
+     */
+    V remove(long seq) {
+        final int slot = (int) seq & mask;
+        final V value = slots.get(slot);
+        V removed = null;
+        if (value != null && seqOf.applyAsLong(value) == seq) {
+            if (slots.compareAndSet(slot, value, null)) {
+                removed = value;
+            }
+        } else if (!overflow.isEmpty()) {
+            removed = overflow.remove(seq);
+        }
+        if (removed != null) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of entries that did not fit in their slot
+     */
+    int overflowSize() {
+        return overflow.size();
+    }
+}
@@ -1,12 +1,43 @@
 package xyz.mattring.crystan.service;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Generates Job IDs for one client.
+ * <p>
+ * Legacy String Job IDs look like prefix-YYYYMMDD-count, where the count restarts at 1 every day.
+ * Binary Job IDs are the client ID hash plus a sequence number that never restarts.
+ * <p>
+ * Lock free: the day rolls over lazily, on the first Job ID generated after midnight, without a polling thread.
+ */
 public class JobIdGenerator {
+
+    /**
+     * The current day, with its own job counter, so a rollover never mixes up dates and counts.
+     */
+    static final class Day {
+        final int yyyymmdd;
+        final long nextDayStartMillis;
+        final AtomicLong jobCount = new AtomicLong(1L);
+
+        Day(LocalDate date, ZoneId zone) {
+            this.yyyymmdd = Integer.parseInt(date.format(DateTimeFormatter.BASIC_ISO_DATE));
+            this.nextDayStartMillis = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+    }
+
     private final String prefix;
-    private int todayYYYYMMDD;
-    private long todayJobCount;
+    private final byte[] prefixBytes;
+    private final int clientHash;
+    private final ZoneId zone;
+    private final AtomicLong jobSeq = new AtomicLong();
+    private final AtomicReference<Day> today;
 
     public JobIdGenerator(String prefix) {
         final boolean validPrefix = isValidPrefix(prefix);
@@ -14,12 +45,10 @@ public class JobIdGenerator {
             throw new IllegalArgumentException("prefix must be non-null, non-empty, and contain only ASCII characters");
         }
         this.prefix = prefix;
-        this.todayYYYYMMDD = calcTodayYYYYMMDD();
-        todayJobCount = 1L;
-        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(
-                this::checkIfNewDay, 2, 2, java.util.concurrent.TimeUnit.MINUTES);
-        Runtime.getRuntime().addShutdownHook(new Thread(scheduler::shutdown));
+        this.prefixBytes = prefix.getBytes(StandardCharsets.US_ASCII);
+        this.clientHash = hashClientId(prefix);
+        this.zone = ZoneId.systemDefault();
+        this.today = new AtomicReference<>(new Day(LocalDate.now(zone), zone));
     }
 
     static boolean isValidPrefix(String prefix) {
@@ -28,26 +57,102 @@ public class JobIdGenerator {
                 && prefix.chars().allMatch(c -> c < 128);
     }
 
-    private int calcTodayYYYYMMDD() {
-        return Integer.parseInt(
-                java.time.LocalDate.now().format(
-                        java.time.format.DateTimeFormatter.BASIC_ISO_DATE));
+    /**
+     * A well mixed 32 bit hash of the client ID (murmur3 finalizer over String.hashCode).
+     */
+    static int hashClientId(String clientId) {
+        int h = clientId.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
-    private void checkIfNewDay() {
-        final int today = calcTodayYYYYMMDD();
-        synchronized (prefix) {
-            if (today != todayYYYYMMDD) {
-                todayYYYYMMDD = today;
-                todayJobCount = 1L;
-            }
+    /**
+     * @return the current day, rolling it over if midnight has passed
+     */
+    Day currentDay() {
+        final Day day = today.get();
+        final long now = System.currentTimeMillis();
+        if (now < day.nextDayStartMillis) {
+            return day;
         }
+        final Day newDay = new Day(LocalDate.ofInstant(Instant.ofEpochMilli(now), zone), zone);
+        // if another thread won the race, use its day
+        return today.compareAndSet(day, newDay) ? newDay : today.get();
     }
 
     public String nextJobId() {
-        synchronized (prefix) {
-            return prefix + "-" + todayYYYYMMDD + "-" + todayJobCount++;
+        final Day day = currentDay();
+        return prefix + "-" + day.yyyymmdd + "-" + day.jobCount.getAndIncrement();
+    }
+
+    /**
+     * Writes the next legacy Job ID as ASCII bytes, without creating a String.
+     *
+     * @param dst    the destination buffer
+     * @param offset where to write the Job ID
+     * @return the number of bytes written
+     */
+    public int writeNextJobId(byte[] dst, int offset) {
+        final Day day = currentDay();
+        final long count = day.jobCount.getAndIncrement();
+        int pos = offset;
+        System.arraycopy(prefixBytes, 0, dst, pos, prefixBytes.length);
+        pos += prefixBytes.length;
+        dst[pos++] = '-';
+        pos = writeDecimal(day.yyyymmdd, dst, pos);
+        dst[pos++] = '-';
+        pos = writeDecimal(count, dst, pos);
+        return pos - offset;
+    }
+
+    /**
+     * Writes a binary Job ID header with the next job sequence number.
+     *
+     * @param dst    the destination buffer, with at least JobIdSerdeHelper.BINARY_HEADER_SIZE bytes from offset
+     * @param offset where to write the header
+     * @param flags  the header flags
+     * @return the job sequence number that was written
+     */
+    public long writeNextBinaryJobId(byte[] dst, int offset, byte flags) {
+        final long seq = nextJobSeq();
+        JobIdSerdeHelper.writeBinaryHeader(dst, offset, flags, clientHash, seq);
+        return seq;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative value.
+     *
+     * @return the position after the last digit
+     */
+    static int writeDecimal(long value, byte[] dst, int pos) {
+        int numDigits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            numDigits++;
+        }
+        long v = value;
+        for (int i = pos + numDigits - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + (v % 10));
+            v /= 10;
         }
+        return pos + numDigits;
+    }
+
+    /**
+     * @return the client ID hash for binary Job IDs
+     */
+    public int getClientHash() {
+        return clientHash;
+    }
+
+    /**
+     * @return the next job sequence number for binary Job IDs, starting at 1
+     */
+    public long nextJobSeq() {
+        return jobSeq.incrementAndGet();
     }
 
 }
@@ -1,13 +1,87 @@
 package xyz.mattring.crystan.service;
 
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.impl.Headers;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
+import xyz.mattring.crystan.msgbus.Publisher;
+import xyz.mattring.crystan.util.ByteArrayOutput;
 import xyz.mattring.crystan.util.Tuple2;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
+/**
+ * Reads and writes the Job ID header that is prepended to every tracked message payload.
+ * <p>
+ * There are two header formats:
+ * <ol>
+ *     <li>Binary (v1), 14 bytes: magic/version byte 0xC1, flags byte, 4 byte client ID hash, 8 byte job sequence.
+ *     The low nibble of the flags byte holds flags, the high nibble holds the payload format ID (see Codec).
+ *     Written by ClientCore, and echoed back by the servers.</li>
+ *     <li>Legacy, 50 bytes: the Job ID as a space/zero padded UTF-8 string.
+ *     Still read and echoed back by the servers, for clients that have not been upgraded yet.</li>
+ * </ol>
+ * The two formats are told apart by the first byte. Legacy Job IDs are ASCII, so they never start with the magic byte.
+ * <p>
+ * Legacy Job ID headers have no format ID, so their payloads are always in the receiver's default format (0).
+ * <p>
+ * A response without a payload can be a signal instead: "overloaded" (the server did not process the request)
+ * or "failed" (the server ran the business logic, and it failed). Binary headers carry them as flags,
+ * legacy headers as a marker in the last byte of the Job ID, and NATS headers in the {@link #STATUS_HEADER}.
+ * <p>
+ * Alternatively, the Job ID can travel in NATS message headers (see {@link #JOB_HEADER}),
+ * so the payload is passed to and from the serializers without being copied.
+ */
 public class JobIdSerdeHelper {
 
     private static final int JOB_ID_SIZE = 50;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+    /**
+     * Marks a legacy overloaded message, in the last byte of its zero padded Job ID.
+     * Reading the Job ID trims it away, like the padding.
+     */
+    private static final byte LEGACY_OVERLOADED_MARKER = 0x01;
+    /**
+     * Marks a legacy failed message, like LEGACY_OVERLOADED_MARKER.
+     */
+    private static final byte LEGACY_FAILED_MARKER = 0x02;
+
+    public static final byte MAGIC_V1 = (byte) 0xC1;
+    public static final int BINARY_HEADER_SIZE = 14;
+    public static final byte FLAG_OVERLOADED = 0x01;
+    public static final byte FLAG_FAILED = 0x02;
+    static final int FORMAT_SHIFT = 4;
+    static final int FLAGS_OFFSET = 1;
+    static final int CLIENT_HASH_OFFSET = 2;
+    static final int JOB_SEQ_OFFSET = 6;
+    /**
+     * NATS header with a binary Job ID, formatted as clientHash (hex) + "-" + jobSeq.
+     */
+    public static final String JOB_HEADER = "Crystan-Job";
+    /**
+     * NATS header with a legacy String Job ID.
+     */
+    public static final String JOB_ID_HEADER = "Crystan-Job-Id";
+    /**
+     * NATS header with the message status. Only set for overloaded and failed responses.
+     */
+    public static final String STATUS_HEADER = "Crystan-Status";
+    public static final String STATUS_OVERLOADED = "overloaded";
+    public static final String STATUS_FAILED = "failed";
+    /**
+     * NATS header with the payload format ID. Only set for formats other than 0.
+     */
+    public static final String FORMAT_HEADER = "Crystan-Format";
+    private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     /**
      * prepend payload with jobId
@@ -32,18 +106,15 @@ public class JobIdSerdeHelper {
 
     /**
      * fast extraction of Job ID and payload from payloadWithJobId
+     * <p>
+     * Copies the payload. The receive path uses readTrackedMsgInPlace instead, which does not.
      *
      * @param payloadWithJobId
      * @return tuple of Job ID and payload
      */
     public static Tuple2<String, byte[]> splitJobIdAndPayload(byte[] payloadWithJobId) {
-        ByteBuffer buffer = ByteBuffer.wrap(payloadWithJobId);
-        byte[] jobIdBytes = new byte[JOB_ID_SIZE];
-        buffer.get(jobIdBytes, 0, JOB_ID_SIZE);
-        String jobId = new String(jobIdBytes, StandardCharsets.UTF_8).trim();
-
-        byte[] payload = new byte[buffer.remaining()];
-        buffer.get(payload);
+        final String jobId = readLegacyJobId(payloadWithJobId);
+        final byte[] payload = Arrays.copyOfRange(payloadWithJobId, JOB_ID_SIZE, payloadWithJobId.length);
         return new Tuple2<>(jobId, payload);
     }
 
@@ -57,9 +128,518 @@ public class JobIdSerdeHelper {
         if (payloadWithJobId == null || payloadWithJobId.length < JOB_ID_SIZE) {
             return null;
         }
-        // Extract only the Job ID part
-        byte[] jobIdBytes = new byte[JOB_ID_SIZE];
-        System.arraycopy(payloadWithJobId, 0, jobIdBytes, 0, JOB_ID_SIZE);
-        return new String(jobIdBytes, StandardCharsets.UTF_8).trim();
+        return readLegacyJobId(payloadWithJobId);
+    }
+
+    /**
+     * Decodes the legacy Job ID straight from the message bytes, without copying them first.
+     */
+    static String readLegacyJobId(byte[] payloadWithJobId) {
+        return new String(payloadWithJobId, 0, JOB_ID_SIZE, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * A message with a marked Job ID and no payload signals that the server was overloaded, and did not process the request.
+     * A request with an empty payload is not marked, so it is not mistaken for one.
+     *
+     * @param jobId a Job ID shorter than the Job ID header, to leave room for the marker
+     * @return byte array containing only a marked Job ID
+     */
+    public static byte[] createOverloadedMsg(String jobId) {
+        final byte[] overloadedMsg = prependPayloadWithJobId(jobId, NO_PAYLOAD);
+        markLegacyOverloaded(overloadedMsg, 0);
+        return overloadedMsg;
+    }
+
+    /**
+     * A message with a Job ID marked as failed and no payload signals that the business logic failed on the request.
+     *
+     * @param jobId a Job ID shorter than the Job ID header, to leave room for the marker
+     * @return byte array containing only a marked Job ID
+     */
+    public static byte[] createFailedMsg(String jobId) {
+        final byte[] failedMsg = prependPayloadWithJobId(jobId, NO_PAYLOAD);
+        markLegacySignal(failedMsg, 0, LEGACY_FAILED_MARKER);
+        return failedMsg;
+    }
+
+    static void markLegacyOverloaded(byte[] dst, int offset) {
+        markLegacySignal(dst, offset, LEGACY_OVERLOADED_MARKER);
+    }
+
+    static void markLegacySignal(byte[] dst, int offset, byte marker) {
+        final int markerIndex = offset + JOB_ID_SIZE - 1;
+        if (dst[markerIndex] != 0) {
+            throw new IllegalArgumentException("Job ID of an overloaded or failed message must be shorter than " + JOB_ID_SIZE + " bytes");
+        }
+        dst[markerIndex] = marker;
+    }
+
+    static boolean isLegacyOverloaded(byte[] payloadWithJobId) {
+        return isLegacySignal(payloadWithJobId, LEGACY_OVERLOADED_MARKER);
+    }
+
+    static boolean isLegacyFailed(byte[] payloadWithJobId) {
+        return isLegacySignal(payloadWithJobId, LEGACY_FAILED_MARKER);
+    }
+
+    static boolean isLegacySignal(byte[] payloadWithJobId, byte marker) {
+        return payloadWithJobId.length == JOB_ID_SIZE && payloadWithJobId[JOB_ID_SIZE - 1] == marker;
+    }
+
+    /**
+     * @param payloadWithJobId byte array containing a Job ID followed by a payload
+     * @return true if payloadWithJobId is an overloaded signal, created by createOverloadedMsg
+     */
+    public static boolean isOverloadedMsg(byte[] payloadWithJobId) {
+        if (isBinaryJobId(payloadWithJobId)) {
+            return (payloadWithJobId[FLAGS_OFFSET] & FLAG_OVERLOADED) != 0;
+        }
+        return payloadWithJobId != null && isLegacyOverloaded(payloadWithJobId);
+    }
+
+    /**
+     * @param payloadWithJobId byte array containing a Job ID followed by a payload
+     * @return true if payloadWithJobId is a failed signal, created by createFailedMsg
+     */
+    public static boolean isFailedMsg(byte[] payloadWithJobId) {
+        if (isBinaryJobId(payloadWithJobId)) {
+            return (payloadWithJobId[FLAGS_OFFSET] & FLAG_FAILED) != 0;
+        }
+        return payloadWithJobId != null && isLegacyFailed(payloadWithJobId);
+    }
+
+    /**
+     * @param payloadWithJobId byte array containing a Job ID followed by a payload
+     * @return true if payloadWithJobId starts with a binary Job ID header
+     */
+    public static boolean isBinaryJobId(byte[] payloadWithJobId) {
+        return payloadWithJobId != null
+                && payloadWithJobId.length >= BINARY_HEADER_SIZE
+                && payloadWithJobId[0] == MAGIC_V1;
+    }
+
+    /**
+     * @param payloadWithJobId byte array containing a Job ID followed by a payload
+     * @return the size of the Job ID header, in either format
+     */
+    public static int headerSize(byte[] payloadWithJobId) {
+        return isBinaryJobId(payloadWithJobId) ? BINARY_HEADER_SIZE : JOB_ID_SIZE;
+    }
+
+    /**
+     * Writes a binary Job ID header.
+     *
+     * @param dst        the destination, with at least BINARY_HEADER_SIZE bytes from offset
+     * @param offset     where to write the header
+     * @param flags      the header flags, e.g. FLAG_OVERLOADED
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     */
+    public static void writeBinaryHeader(byte[] dst, int offset, byte flags, int clientHash, long jobSeq) {
+        dst[offset] = MAGIC_V1;
+        dst[offset + FLAGS_OFFSET] = flags;
+        INT_HANDLE.set(dst, offset + CLIENT_HASH_OFFSET, clientHash);
+        LONG_HANDLE.set(dst, offset + JOB_SEQ_OFFSET, jobSeq);
+    }
+
+    /**
+     * prepend payload with a binary Job ID header
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @param payload
+     * @return byte array containing a binary Job ID header followed by a payload
+     */
+    public static byte[] prependPayloadWithBinaryJobId(int clientHash, long jobSeq, byte[] payload) {
+        return prependPayloadWithBinaryJobId(clientHash, jobSeq, (byte) 0, payload);
+    }
+
+    /**
+     * prepend payload with a binary Job ID header, that also carries the payload format ID
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @param formatId   the payload format ID, from 0 to 15
+     * @param payload
+     * @return byte array containing a binary Job ID header followed by a payload
+     */
+    public static byte[] prependPayloadWithBinaryJobId(int clientHash, long jobSeq, byte formatId, byte[] payload) {
+        final byte[] msg = new byte[BINARY_HEADER_SIZE + payload.length];
+        writeBinaryHeader(msg, 0, formatFlags(formatId), clientHash, jobSeq);
+        System.arraycopy(payload, 0, msg, BINARY_HEADER_SIZE, payload.length);
+        return msg;
+    }
+
+    /**
+     * A binary Job ID header with the overloaded flag and no payload,
+     * signals that the server was overloaded, and did not process the request.
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @return byte array containing only a binary Job ID header
+     */
+    public static byte[] createOverloadedMsg(int clientHash, long jobSeq) {
+        final byte[] msg = new byte[BINARY_HEADER_SIZE];
+        writeBinaryHeader(msg, 0, FLAG_OVERLOADED, clientHash, jobSeq);
+        return msg;
+    }
+
+    /**
+     * A binary Job ID header with the failed flag and no payload,
+     * signals that the business logic failed on the request.
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @return byte array containing only a binary Job ID header
+     */
+    public static byte[] createFailedMsg(int clientHash, long jobSeq) {
+        final byte[] msg = new byte[BINARY_HEADER_SIZE];
+        writeBinaryHeader(msg, 0, FLAG_FAILED, clientHash, jobSeq);
+        return msg;
+    }
+
+    /**
+     * @param payloadWithBinaryJobId byte array starting with a binary Job ID header
+     * @return the client ID hash
+     */
+    public static int readClientHash(byte[] payloadWithBinaryJobId) {
+        return (int) INT_HANDLE.get(payloadWithBinaryJobId, CLIENT_HASH_OFFSET);
+    }
+
+    /**
+     * @param payloadWithBinaryJobId byte array starting with a binary Job ID header
+     * @return the job sequence number
+     */
+    public static long readJobSeq(byte[] payloadWithBinaryJobId) {
+        return (long) LONG_HANDLE.get(payloadWithBinaryJobId, JOB_SEQ_OFFSET);
+    }
+
+    /**
+     * @param payloadWithBinaryJobId byte array starting with a binary Job ID header
+     * @return the payload format ID, from the high nibble of the flags byte
+     */
+    public static byte readFormatId(byte[] payloadWithBinaryJobId) {
+        return (byte) ((payloadWithBinaryJobId[FLAGS_OFFSET] >>> FORMAT_SHIFT) & 0x0F);
+    }
+
+    /**
+     * @param formatId the payload format ID, from 0 to 15
+     * @return the flags byte, with the format ID in its high nibble
+     */
+    public static byte formatFlags(byte formatId) {
+        return (byte) (formatId << FORMAT_SHIFT);
+    }
+
+    /**
+     * @return a readable Job ID for a binary Job ID, for logging and error messages
+     */
+    public static String formatBinaryJobId(int clientHash, long jobSeq) {
+        return binaryJobIdPrefix(clientHash) + jobSeq;
+    }
+
+    /**
+     * @return the start of every formatted binary Job ID of a client
+     */
+    public static String binaryJobIdPrefix(int clientHash) {
+        return Integer.toHexString(clientHash) + "-";
+    }
+
+    /**
+     * Reads a tracked message, with a Job ID header in either format.
+     *
+     * @param payloadWithJobId    byte array containing a Job ID followed by a payload
+     * @param payloadDeserializer converts the payload to a message
+     * @param replyTo             the NATS reply subject of the message, or null
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readTrackedMsg(byte[] payloadWithJobId, Function<byte[], T> payloadDeserializer, String replyTo) {
+        return readTrackedMsgInPlace(payloadWithJobId, PayloadDeserializer.of(payloadDeserializer), replyTo);
+    }
+
+    /**
+     * Reads a tracked message, with a Job ID header in either format.
+     * The deserializer gets a view of the payload within payloadWithJobId, so the payload is not copied.
+     *
+     * @param payloadWithJobId    byte array containing a Job ID followed by a payload
+     * @param payloadDeserializer converts the payload view to a message
+     * @param replyTo             the NATS reply subject of the message, or null
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readTrackedMsgInPlace(byte[] payloadWithJobId, PayloadDeserializer<T> payloadDeserializer, String replyTo) {
+        return readFormattedTrackedMsg(payloadWithJobId, formatId -> payloadDeserializer, replyTo);
+    }
+
+    /**
+     * Reads a tracked message, with a Job ID header in either format,
+     * using the deserializer for the payload format ID in the header. Legacy headers have format ID 0.
+     *
+     * @param payloadWithJobId byte array containing a Job ID followed by a payload
+     * @param deserializers    returns the deserializer for a format ID, e.g. CodecRegistry::get
+     * @param replyTo          the NATS reply subject of the message, or null
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readFormattedTrackedMsg(byte[] payloadWithJobId, IntFunction<? extends PayloadDeserializer<T>> deserializers, String replyTo) {
+        if (isBinaryJobId(payloadWithJobId)) {
+            final int clientHash = readClientHash(payloadWithJobId);
+            final long jobSeq = readJobSeq(payloadWithJobId);
+            if ((payloadWithJobId[FLAGS_OFFSET] & FLAG_OVERLOADED) != 0) {
+                return TrackedMsg.overloaded(clientHash, jobSeq, replyTo);
+            }
+            if ((payloadWithJobId[FLAGS_OFFSET] & FLAG_FAILED) != 0) {
+                return TrackedMsg.failed(clientHash, jobSeq, replyTo);
+            }
+            final byte formatId = readFormatId(payloadWithJobId);
+            final T msg = deserializers.apply(formatId).deserialize(
+                    payloadWithJobId, BINARY_HEADER_SIZE, payloadWithJobId.length - BINARY_HEADER_SIZE);
+            return new TrackedMsg<>(clientHash, jobSeq, msg, replyTo, formatId);
+        }
+        final String jobId = readLegacyJobId(payloadWithJobId);
+        if (isLegacyOverloaded(payloadWithJobId)) {
+            return TrackedMsg.overloaded(jobId, replyTo);
+        }
+        if (isLegacyFailed(payloadWithJobId)) {
+            return TrackedMsg.failed(jobId, replyTo);
+        }
+        final T msg = deserializers.apply(0).deserialize(payloadWithJobId, JOB_ID_SIZE, payloadWithJobId.length - JOB_ID_SIZE);
+        return new TrackedMsg<>(jobId, msg, replyTo);
+    }
+
+    /**
+     * Writes a tracked message, with a Job ID header in the same format as its Job ID.
+     *
+     * @param trackedMsg        the tracked message
+     * @param payloadSerializer converts the message to a payload
+     * @return byte array containing a Job ID followed by a payload, or only a Job ID for an overloaded or failed message
+     */
+    public static <T> byte[] writeTrackedMsg(TrackedMsg<T> trackedMsg, Function<T, byte[]> payloadSerializer) {
+        if (trackedMsg.isBinaryJobId()) {
+            if (trackedMsg.isOverloaded()) {
+                return createOverloadedMsg(trackedMsg.getClientHash(), trackedMsg.getJobSeq());
+            }
+            return trackedMsg.isFailed()
+                    ? createFailedMsg(trackedMsg.getClientHash(), trackedMsg.getJobSeq())
+                    : prependPayloadWithBinaryJobId(trackedMsg.getClientHash(), trackedMsg.getJobSeq(), trackedMsg.getFormatId(), payloadSerializer.apply(trackedMsg.getMsg()));
+        }
+        if (trackedMsg.isOverloaded()) {
+            return createOverloadedMsg(trackedMsg.getJobId());
+        }
+        return trackedMsg.isFailed()
+                ? createFailedMsg(trackedMsg.getJobId())
+                : prependPayloadWithJobId(trackedMsg.getJobId(), payloadSerializer.apply(trackedMsg.getMsg()));
+    }
+
+    /**
+     * Writes a tracked message into a buffer, e.g. a pooled one, with a Job ID header in the same format as its Job ID.
+     * The header and payload are written in place, without intermediate arrays.
+     *
+     * @param trackedMsg the tracked message
+     * @param codec      encodes the message into the buffer
+     * @param out        the buffer
+     */
+    public static <T> void writeTrackedMsg(TrackedMsg<T> trackedMsg, Codec<T> codec, ByteArrayOutput out) {
+        if (trackedMsg.isBinaryJobId()) {
+            final byte flags = trackedMsg.isOverloaded() ? FLAG_OVERLOADED
+                    : trackedMsg.isFailed() ? FLAG_FAILED
+                    : formatFlags(trackedMsg.getFormatId());
+            final int offset = out.reserve(BINARY_HEADER_SIZE);
+            writeBinaryHeader(out.array(), offset, flags, trackedMsg.getClientHash(), trackedMsg.getJobSeq());
+        } else {
+            final int offset = writeLegacyJobId(trackedMsg.getJobId(), out);
+            if (trackedMsg.isOverloaded()) {
+                markLegacyOverloaded(out.array(), offset);
+            } else if (trackedMsg.isFailed()) {
+                markLegacySignal(out.array(), offset, LEGACY_FAILED_MARKER);
+            }
+        }
+        if (!trackedMsg.isSignal()) {
+            codec.encodeTo(trackedMsg.getMsg(), out);
+        }
+    }
+
+    /**
+     * Writes a legacy Job ID into a zero padded header, without encoding it to a separate array when it is ASCII.
+     *
+     * @return the offset of the header in the buffer
+     */
+    static int writeLegacyJobId(String jobId, ByteArrayOutput out) {
+        final int offset = out.reserve(JOB_ID_SIZE);
+        final byte[] dst = out.array();
+        Arrays.fill(dst, offset, offset + JOB_ID_SIZE, (byte) 0);
+        final int length = jobId.length();
+        boolean ascii = length <= JOB_ID_SIZE;
+        for (int i = 0; ascii && i < length; i++) {
+            final char c = jobId.charAt(i);
+            ascii = c < 128;
+            dst[offset + i] = (byte) c;
+        }
+        if (!ascii) {
+            final byte[] jobIdBytes = jobId.getBytes(StandardCharsets.UTF_8);
+            if (jobIdBytes.length > JOB_ID_SIZE) {
+                throw new IllegalArgumentException("Job ID exceeds maximum length of " + JOB_ID_SIZE + " bytes");
+            }
+            Arrays.fill(dst, offset, offset + JOB_ID_SIZE, (byte) 0);
+            System.arraycopy(jobIdBytes, 0, dst, offset, jobIdBytes.length);
+        }
+        return offset;
+    }
+
+    /**
+     * Publishes a tracked message, with its Job ID in NATS headers or prepended to the payload, as the message says.
+     * Everything is written into a pooled buffer, except in header mode with a codec that does not encode in place:
+     * nothing is prepended then, so the output of encode is published as is, rather than copied in and back out.
+     *
+     * @param publisher  publishes the pooled buffer
+     * @param trackedMsg the tracked message
+     * @param codec      encodes the message, in the format of the message
+     * @param subject    the subject to publish to
+     * @param replyTo    the reply subject, or null for none
+     * @param conn       the connection to publish through
+     */
+    public static <T> void publishTrackedMsg(Publisher<TrackedMsg<T>> publisher, TrackedMsg<T> trackedMsg, Codec<T> codec, String subject, String replyTo, Connection conn) {
+        if (!trackedMsg.isJobIdInHeaders()) {
+            publisher.publishPooled(trackedMsg, (msg, out) -> writeTrackedMsg(msg, codec, out), null, subject, replyTo, conn);
+        } else if (codec.encodesInPlace()) {
+            publisher.publishPooled(trackedMsg, (msg, out) -> writePayload(msg, codec, out), createJobIdHeaders(trackedMsg), subject, replyTo, conn);
+        } else {
+            conn.publish(subject, replyTo, createJobIdHeaders(trackedMsg), writePayload(trackedMsg, codec::encode));
+        }
+    }
+
+    /**
+     * @param natsMsg the NATS message
+     * @return true if the message carries its Job ID in NATS headers
+     */
+    public static boolean hasJobIdHeaders(Message natsMsg) {
+        if (!natsMsg.hasHeaders()) {
+            return false;
+        }
+        final Headers headers = natsMsg.getHeaders();
+        return headers.containsKey(JOB_HEADER) || headers.containsKey(JOB_ID_HEADER);
+    }
+
+    /**
+     * Reads a tracked message, with the Job ID either in NATS headers, or prepended to the payload in either format.
+     * With the Job ID in headers, the payload is handed to the deserializer without copying.
+     *
+     * @param natsMsg             the NATS message
+     * @param payloadDeserializer converts the payload to a message
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readTrackedMsg(Message natsMsg, Function<byte[], T> payloadDeserializer) {
+        return readTrackedMsgInPlace(natsMsg, PayloadDeserializer.of(payloadDeserializer));
+    }
+
+    /**
+     * Reads a tracked message, with the Job ID either in NATS headers, or prepended to the payload in either format.
+     * The deserializer gets a view of the payload within the message data, so the payload is not copied.
+     *
+     * @param natsMsg             the NATS message
+     * @param payloadDeserializer converts the payload view to a message
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readTrackedMsgInPlace(Message natsMsg, PayloadDeserializer<T> payloadDeserializer) {
+        return readFormattedTrackedMsg(natsMsg, formatId -> payloadDeserializer);
+    }
+
+    /**
+     * Reads a tracked message, with the Job ID either in NATS headers, or prepended to the payload in either format,
+     * using the deserializer for the payload format ID in the headers or Job ID header.
+     *
+     * @param natsMsg       the NATS message
+     * @param deserializers returns the deserializer for a format ID, e.g. CodecRegistry::get
+     * @return tracked message, which is overloaded or failed (without a message) for an overloaded or failed signal
+     */
+    public static <T> TrackedMsg<T> readFormattedTrackedMsg(Message natsMsg, IntFunction<? extends PayloadDeserializer<T>> deserializers) {
+        if (!hasJobIdHeaders(natsMsg)) {
+            return readFormattedTrackedMsg(natsMsg.getData(), deserializers, natsMsg.getReplyTo());
+        }
+        final Headers headers = natsMsg.getHeaders();
+        final String status = headers.getFirst(STATUS_HEADER);
+        final boolean overloaded = STATUS_OVERLOADED.equals(status);
+        final boolean failed = STATUS_FAILED.equals(status);
+        final String format = headers.getFirst(FORMAT_HEADER);
+        final byte formatId = format != null ? Byte.parseByte(format) : 0;
+        final String binaryJobId = headers.getFirst(JOB_HEADER);
+        final byte[] data = natsMsg.getData();
+        final TrackedMsg<T> trackedMsg;
+        if (binaryJobId != null) {
+            final int clientHash = parseClientHash(binaryJobId);
+            final long jobSeq = parseJobSeq(binaryJobId);
+            trackedMsg = overloaded ? TrackedMsg.overloaded(clientHash, jobSeq, natsMsg.getReplyTo())
+                    : failed ? TrackedMsg.failed(clientHash, jobSeq, natsMsg.getReplyTo())
+                    : new TrackedMsg<>(clientHash, jobSeq, deserializers.apply(formatId).deserialize(data, 0, data.length), natsMsg.getReplyTo(), formatId);
+        } else {
+            final String jobId = headers.getFirst(JOB_ID_HEADER);
+            trackedMsg = overloaded ? TrackedMsg.overloaded(jobId, natsMsg.getReplyTo())
+                    : failed ? TrackedMsg.failed(jobId, natsMsg.getReplyTo())
+                    : new TrackedMsg<>(jobId, deserializers.apply(formatId).deserialize(data, 0, data.length), natsMsg.getReplyTo()).withFormatId(formatId);
+        }
+        return trackedMsg.withJobIdInHeaders();
+    }
+
+    /**
+     * @param binaryJobId a binary Job ID formatted by formatBinaryJobId, e.g. from the JOB_HEADER
+     * @return the client ID hash
+     */
+    public static int parseClientHash(String binaryJobId) {
+        return Integer.parseUnsignedInt(binaryJobId, 0, binaryJobId.indexOf('-'), 16);
+    }
+
+    /**
+     * @param binaryJobId a binary Job ID formatted by formatBinaryJobId, e.g. from the JOB_HEADER
+     * @return the job sequence number
+     */
+    public static long parseJobSeq(String binaryJobId) {
+        return Long.parseLong(binaryJobId, binaryJobId.indexOf('-') + 1, binaryJobId.length(), 10);
+    }
+
+    /**
+     * Creates the NATS headers for a tracked message whose Job ID travels in headers.
+     *
+     * @param trackedMsg the tracked message
+     * @return NATS headers with the Job ID, and the status for overloaded and failed messages
+     */
+    public static Headers createJobIdHeaders(TrackedMsg<?> trackedMsg) {
+        final Headers headers = new Headers();
+        if (trackedMsg.isBinaryJobId()) {
+            headers.put(JOB_HEADER, formatBinaryJobId(trackedMsg.getClientHash(), trackedMsg.getJobSeq()));
+        } else {
+            headers.put(JOB_ID_HEADER, trackedMsg.getJobId());
+        }
+        if (trackedMsg.isOverloaded()) {
+            headers.put(STATUS_HEADER, STATUS_OVERLOADED);
+        } else if (trackedMsg.isFailed()) {
+            headers.put(STATUS_HEADER, STATUS_FAILED);
+        } else if (trackedMsg.getFormatId() != 0) {
+            headers.put(FORMAT_HEADER, Byte.toString(trackedMsg.getFormatId()));
+        }
+        return headers;
+    }
+
+    /**
+     * Serializes the payload of a tracked message whose Job ID travels in headers.
+     * The serializer output is returned as is, without copying.
+     *
+     * @param trackedMsg        the tracked message
+     * @param payloadSerializer converts the message to a payload
+     * @return the payload, which is empty for an overloaded or failed message
+     */
+    public static <T> byte[] writePayload(TrackedMsg<T> trackedMsg, Function<T, byte[]> payloadSerializer) {
+        return trackedMsg.isSignal() ? NO_PAYLOAD : payloadSerializer.apply(trackedMsg.getMsg());
+    }
+
+    /**
+     * Writes the payload of a tracked message whose Job ID travels in headers into a buffer, e.g. a pooled one.
+     * Nothing is written for an overloaded or failed message.
+     *
+     * @param trackedMsg the tracked message
+     * @param codec      encodes the message into the buffer
+     * @param out        the buffer
+     */
+    public static <T> void writePayload(TrackedMsg<T> trackedMsg, Codec<T> codec, ByteArrayOutput out) {
+        if (!trackedMsg.isSignal()) {
+            codec.encodeTo(trackedMsg.getMsg(), out);
+        }
     }
 }
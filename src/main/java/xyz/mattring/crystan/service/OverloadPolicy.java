@@ -0,0 +1,19 @@
+package xyz.mattring.crystan.service;
+
+/**
+ * What a server does with a new request when its request queue is full.
+ */
+public enum OverloadPolicy {
+    /**
+     * Wait for space in the queue. This blocks the NATS dispatcher thread.
+     */
+    BLOCK,
+    /**
+     * Reject the new request, with an immediate "overloaded" response to the client.
+     */
+    REJECT,
+    /**
+     * Shed the oldest queued requests, with "overloaded" responses to their clients, to make space for the new request.
+     */
+    DROP_OLDEST
+}
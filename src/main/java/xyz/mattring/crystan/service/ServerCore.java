@@ -1,15 +1,39 @@
 package xyz.mattring.crystan.service;
 
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
 import com.lmax.disruptor.util.DaemonThreadFactory;
+import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
+import io.nats.client.Message;
 import io.nats.client.Options;
 import io.nats.client.Subscription;
+import xyz.mattring.crystan.cache.PartsCache;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.codec.CodecRegistry;
 import xyz.mattring.crystan.msgbus.BusConnector;
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
 import xyz.mattring.crystan.msgbus.Publisher;
 import xyz.mattring.crystan.msgbus.Subscriber;
+import xyz.mattring.crystan.sched.SideWorkScheduler;
 import xyz.mattring.crystan.util.Tuple2;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -20,9 +44,30 @@ import java.util.function.Supplier;
  * performs some business logic, and publishes a response message.
  * <p>
  * The server core is implemented using a disruptor, which allows for asynchronous processing
- * of requests and responses.
+ * of requests and responses. Each ring slot flows through a single pipeline:
+ * business logic workers, then response serialization/publishing, then slot clearing.
+ * The response is written into the same slot as its request, so each request only occupies one slot.
  * <p>
- * String jobIds are propagated from request to response to help the client correlate requests with responses.
+ * The business logic can be spread over several worker threads. Each worker handles the request
+ * events whose ring sequence maps to it (sequence modulo numWorkers), so every request is processed
+ * exactly once, and the ring slots are only cleared after the response publisher is done.
+ * With batch business logic (see {@link Builder#batchLogic}), each worker hands its share of a disruptor batch
+ * to the logic in one call. With async business logic (see {@link Builder#asyncLogic} and
+ * {@link Builder#virtualThreadLogic}), the workers only start the logic, and responses are published as they complete.
+ * <p>
+ * Use the {@link Builder} to tune the ring size, wait strategy, producer type and consumer threads,
+ * or start from one of the named {@link ServerProfile}s.
+ * <p>
+ * When the ring is full, the {@link OverloadPolicy} decides whether the NATS dispatcher thread blocks,
+ * or whether requests are shed with an immediate "overloaded" response, so clients can back off.
+ * <p>
+ * JobIds are propagated from request to response to help the client correlate requests with responses.
+ * The response Job ID header uses the same format (binary or legacy String) as the request's.
+ * Responses go to the request's NATS reply subject when it has one, e.g. a client's private reply inbox,
+ * otherwise to the sendRespSubject. When a request carries its Job ID in NATS headers, so does its response.
+ * <p>
+ * The server can understand several payload formats at once (see {@link Builder#codecs}), e.g. while clients migrate
+ * from JSON to the binary codec. Each response is encoded in the format of its request.
  *
  * @param <A> the type of the request message
  * @param <B> the type of the response message
@@ -32,34 +77,224 @@ public class ServerCore<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>
     static class ReqRespEvent<T, U> {
         T req;
         U resp;
-        String jobId;
+        TrackedMsg<T> trackedReq;
+        boolean overloaded;
+        boolean failed;
 
         void clear() {
             req = null;
             resp = null;
-            jobId = null;
+            trackedReq = null;
+            overloaded = false;
+            failed = false;
         }
     }
 
+    private static final EventTranslatorOneArg<ReqRespEvent<Object, Object>, TrackedMsg<Object>> REQUEST_TRANSLATOR =
+            (event, sequence, trackedRequestMsg) -> {
+                event.req = trackedRequestMsg.getMsg();
+                event.trackedReq = trackedRequestMsg;
+            };
+
     final String rcvReqSubject;
     final String sendRespSubject;
+    final String queueGroup;
     Supplier<Options> optionsSupplier;
-    final Function<byte[], A> reqMsgDeserializer;
+    int connectionPoolSize = 1;
+    final CodecRegistry<A> reqCodecs;
     final Function<A, B> businessLogic;
-    final Function<B, byte[]> respMsgSerializer;
+    final Function<List<A>, List<B>> batchLogic;
+    final int maxLogicBatch;
+    final Function<A, CompletionStage<B>> asyncLogic;
+    /**
+     * Caps the async business logic calls that have not completed yet.
+     */
+    final Semaphore inFlightPermits;
+    final int maxInFlight;
+    /**
+     * Runs blocking business logic on virtual threads, or null.
+     */
+    final ExecutorService logicExecutor;
+    final LongAdder numAsyncFailures = new LongAdder();
+    /**
+     * How long run() waits for the async business logic calls in flight when the server stops.
+     */
+    static final Duration ASYNC_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+    /**
+     * How long a worker waits for an in-flight permit before checking whether the server is stopping.
+     */
+    static final Duration PERMIT_WAIT = Duration.ofMillis(10);
+    /**
+     * Set when the server stopped waiting for async responses, which are not published after that.
+     */
+    volatile boolean asyncResponsesClosed = false;
+    final CodecRegistry<B> respCodecs;
+    final int numWorkers;
+    final OverloadPolicy overloadPolicy;
+    final ProducerType producerType;
     final Disruptor<ReqRespEvent<A, B>> disruptor;
-    boolean running = false;
+    final LongAdder numRejected = new LongAdder();
+    final LongAdder numDropped = new LongAdder();
+    /**
+     * With OverloadPolicy.DROP_OLDEST, the workers shed the requests below this ring sequence.
+     */
+    volatile long dropBeforeSequence = -1L;
+    /**
+     * With response batching, the responses of the current disruptor batch that are not published yet.
+     * Only used by the response handler thread.
+     */
+    final List<TrackedMsg<B>> pendingResponses = new ArrayList<>();
+    final int maxResponseBatch;
+    final long maxResponseDelayNanos;
+    long responseBatchStartNanos;
+    final LongAdder numLogicBatches = new LongAdder();
+    final LongAdder numBatchedRequests = new LongAdder();
+    final LongAdder numResponseBatches = new LongAdder();
+    final LongAdder numBatchedResponses = new LongAdder();
+    final LongAccumulator maxResponseBatchSize = new LongAccumulator(Math::max, 0L);
+    final SideWorkScheduler sideWorkScheduler = new SideWorkScheduler();
+    volatile boolean running = false;
 
     public ServerCore(String rcvReqSubject, String sendRespSubject, Function<byte[], A> reqMsgDeserializer, Function<A, B> businessLogic, Function<B, byte[]> respMsgSerializer) {
-        this.rcvReqSubject = rcvReqSubject;
-        this.sendRespSubject = sendRespSubject;
+        this(rcvReqSubject, sendRespSubject, reqMsgDeserializer, businessLogic, respMsgSerializer, 1);
+    }
+
+    /**
+     * Creates a server that runs the business logic on numWorkers threads.
+     * The business logic must be thread safe when numWorkers is greater than 1.
+     *
+     * @param numWorkers the number of business logic worker threads (at least 1)
+     */
+    public ServerCore(String rcvReqSubject, String sendRespSubject, Function<byte[], A> reqMsgDeserializer, Function<A, B> businessLogic, Function<B, byte[]> respMsgSerializer, int numWorkers) {
+        this(new Builder<A, B>()
+                .rcvReqSubject(rcvReqSubject)
+                .sendRespSubject(sendRespSubject)
+                .reqMsgDeserializer(reqMsgDeserializer)
+                .businessLogic(businessLogic)
+                .respMsgSerializer(respMsgSerializer)
+                .numWorkers(numWorkers));
+    }
+
+    ServerCore(Builder<A, B> builder) {
+        builder.validate();
+        this.rcvReqSubject = builder.rcvReqSubject;
+        this.sendRespSubject = builder.sendRespSubject;
+        this.queueGroup = builder.queueGroup;
         this.optionsSupplier = BusConnector.super::getOptions;
-        this.reqMsgDeserializer = reqMsgDeserializer;
-        this.businessLogic = businessLogic;
-        this.respMsgSerializer = respMsgSerializer;
-        final int ringSize = 1024; // TODO: make configurable (must be power of 2)
-        disruptor = new Disruptor<>(ReqRespEvent::new, ringSize, DaemonThreadFactory.INSTANCE);
-        disruptor.handleEventsWith(this::handleRequestEvent, this::handleResponseEvent).then((event, sequence, endOfBatch) -> event.clear());
+        this.connectionPoolSize = builder.connectionPoolSize;
+        this.reqCodecs = builder.createReqCodecs();
+        this.businessLogic = builder.businessLogic;
+        this.batchLogic = builder.batchLogic;
+        this.maxLogicBatch = builder.maxLogicBatch;
+        if (builder.virtualThreadLogic != null) {
+            final Function<A, B> blockingLogic = builder.virtualThreadLogic;
+            this.logicExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            this.asyncLogic = requestMsg -> CompletableFuture.supplyAsync(() -> blockingLogic.apply(requestMsg), logicExecutor);
+        } else {
+            this.logicExecutor = null;
+            this.asyncLogic = builder.asyncLogic;
+        }
+        this.maxInFlight = builder.maxInFlight;
+        this.inFlightPermits = asyncLogic != null ? new Semaphore(maxInFlight) : null;
+        this.respCodecs = builder.createRespCodecs();
+        this.numWorkers = builder.numWorkers;
+        this.overloadPolicy = builder.overloadPolicy;
+        this.producerType = builder.producerType;
+        this.maxResponseBatch = builder.maxResponseBatch;
+        this.maxResponseDelayNanos = builder.maxResponseDelay.toNanos();
+        disruptor = new Disruptor<>(
+                ReqRespEvent::new,
+                builder.getRingSize(),
+                builder.threadFactory,
+                builder.producerType,
+                builder.getWaitStrategyType().create());
+        disruptor.handleEventsWith(createRequestWorkers())
+                .then(this::handleResponseEvent)
+                .then((event, sequence, endOfBatch) -> event.clear());
+    }
+
+    /**
+     * Creates the request workers, which all run in parallel on each event.
+     *
+     * @return array of event handlers
+     */
+    @SuppressWarnings("unchecked")
+    EventHandler<ReqRespEvent<A, B>>[] createRequestWorkers() {
+        final EventHandler<ReqRespEvent<A, B>>[] workers = (EventHandler<ReqRespEvent<A, B>>[]) new EventHandler<?>[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = createRequestWorker(i);
+        }
+        return workers;
+    }
+
+    /**
+     * Creates a request worker that only handles the events assigned to its ordinal.
+     *
+     * @param ordinal the worker ordinal, from 0 to numWorkers - 1
+     * @return event handler
+     */
+    EventHandler<ReqRespEvent<A, B>> createRequestWorker(int ordinal) {
+        if (batchLogic != null) {
+            return new BatchRequestWorker(ordinal);
+        }
+        if (numWorkers == 1) {
+            return this::handleRequestEvent;
+        }
+        return (event, sequence, endOfBatch) -> {
+            if ((sequence % numWorkers) == ordinal) {
+                handleRequestEvent(event, sequence, endOfBatch);
+            }
+        };
+    }
+
+    /**
+     * A request worker for the batch business logic.
+     * It collects its requests until the end of the disruptor batch, or maxLogicBatch requests,
+     * then runs the batch logic on them, and stores each response in its request's event.
+     * The batches grow with the load, and shrink to 1 request when the server is idle.
+     */
+    class BatchRequestWorker implements EventHandler<ReqRespEvent<A, B>> {
+        final int ordinal;
+        final List<ReqRespEvent<A, B>> events = new ArrayList<>();
+        final List<A> requestMsgs = new ArrayList<>();
+
+        BatchRequestWorker(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public void onEvent(ReqRespEvent<A, B> event, long sequence, boolean endOfBatch) {
+            // the end of the batch may be another worker's event, so every worker sees every event
+            if (event.req != null && (sequence % numWorkers) == ordinal) {
+                if (sequence < dropBeforeSequence) {
+                    numDropped.increment();
+                    event.overloaded = true;
+                } else {
+                    events.add(event);
+                    requestMsgs.add(event.req);
+                }
+            }
+            if (!events.isEmpty() && (endOfBatch || events.size() >= maxLogicBatch)) {
+                processBatch();
+            }
+        }
+
+        void processBatch() {
+            try {
+                final List<B> responseMsgs = batchLogic.apply(requestMsgs);
+                if (responseMsgs == null || responseMsgs.size() != events.size()) {
+                    throw new IllegalStateException("batch logic must return one response per request, in order");
+                }
+                for (int i = 0; i < responseMsgs.size(); i++) {
+                    events.get(i).resp = responseMsgs.get(i);
+                }
+                numLogicBatches.increment();
+                numBatchedRequests.add(events.size());
+            } finally {
+                events.clear();
+                requestMsgs.clear();
+            }
+        }
     }
 
     /**
@@ -81,29 +316,96 @@ public class ServerCore<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>
         return optionsSupplier.get();
     }
 
+    /**
+     * Sets the number of NATS connections. Responses are striped across them by client,
+     * and with a queue group, each connection also subscribes to rcvReqSubject.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param connectionPoolSize at least 1, defaults to 1
+     * @see Builder#connectionPoolSize
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        checkConnectionPoolSize(connectionPoolSize, queueGroup, producerType);
+        if (!running) {
+            this.connectionPoolSize = connectionPoolSize;
+        }
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    /**
+     * With a queue group, each pooled connection subscribes with its own NATS dispatcher thread,
+     * and they all publish into the ring, which ProducerType.SINGLE does not allow.
+     */
+    static void checkConnectionPoolSize(int connectionPoolSize, String queueGroup, ProducerType producerType) {
+        if (connectionPoolSize < 1) {
+            throw new IllegalArgumentException("connectionPoolSize must be at least 1");
+        }
+        if (connectionPoolSize > 1 && queueGroup != null && producerType == ProducerType.SINGLE) {
+            throw new IllegalArgumentException("ProducerType.SINGLE needs a single dispatcher, so connectionPoolSize must be 1 with a queueGroup");
+        }
+    }
+
     @Override
     public void run() {
-        Tuple2<Dispatcher, Subscription> subParts = null;
+        List<Tuple2<Dispatcher, Subscription>> subParts = null;
         try {
             running = true;
             disruptor.start();
-            subParts = subscribe(this::processTrackedRequestAsync, this::deserializeTrackedRequest, rcvReqSubject, getConnection());
-            while (running) {
-                performSideWork();
-            }
+            subParts = subscribeToMessages(this::processTrackedRequestAsync, this::deserializeTrackedRequest, rcvReqSubject, queueGroup, getConnections());
+            sideWorkScheduler.runWhile(() -> running, this::performSideWork);
         } finally {
             running = false;
             if (subParts != null) {
-                subParts._1().unsubscribe(subParts._2());
+                Subscriber.unsubscribeAll(subParts);
             }
             if (disruptor != null) {
                 disruptor.shutdown();
             }
+            awaitAsyncResponses();
+            closeConnections();
+            PartsCache.evict(this);
+        }
+    }
+
+    /**
+     * Waits for the async business logic calls in flight to publish their responses,
+     * so that none of them reopens a connection after closeConnections().
+     * Virtual thread logic is waited for until it completes, other async logic for up to ASYNC_SHUTDOWN_TIMEOUT.
+     */
+    void awaitAsyncResponses() {
+        if (logicExecutor != null) {
+            logicExecutor.close();
+        }
+        if (inFlightPermits != null) {
+            try {
+                if (inFlightPermits.tryAcquire(maxInFlight, ASYNC_SHUTDOWN_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS)) {
+                    inFlightPermits.release(maxInFlight);
+                }
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+            asyncResponsesClosed = true;
         }
     }
 
     public void stop() {
         running = false;
+        sideWorkScheduler.wake();
+    }
+
+    /**
+     * Returns the scheduler for periodic side work, which runs on the run() thread.
+     * Use it to schedule tasks or to set the idle strategy BEFORE the server is started.
+     *
+     * @return the side work scheduler
+     */
+    public SideWorkScheduler getSideWorkScheduler() {
+        return sideWorkScheduler;
     }
 
     /**
@@ -113,26 +415,61 @@ public class ServerCore<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>
      * @return the deserialized request message
      */
     TrackedMsg<A> deserializeTrackedRequest(byte[] trackedRequestMsgBytes) {
-        Tuple2<String, byte[]> jobIdAndPayload = JobIdSerdeHelper.splitJobIdAndPayload(trackedRequestMsgBytes);
-        String jobId = jobIdAndPayload._1();
-        A requestMsg = reqMsgDeserializer.apply(jobIdAndPayload._2());
-        return new TrackedMsg<>(jobId, requestMsg);
+        return deserializeTrackedRequest(trackedRequestMsgBytes, null);
+    }
+
+    /**
+     * Deserializes a request message from a NATS message, keeping its reply subject.
+     * The Job ID is read from the NATS headers if it has them, otherwise from the payload.
+     *
+     * @param natsMsg the NATS message
+     * @return the deserialized request message
+     */
+    TrackedMsg<A> deserializeTrackedRequest(Message natsMsg) {
+        return JobIdSerdeHelper.readFormattedTrackedMsg(natsMsg, reqCodecs);
+    }
+
+    TrackedMsg<A> deserializeTrackedRequest(byte[] trackedRequestMsgBytes, String replyTo) {
+        return JobIdSerdeHelper.readFormattedTrackedMsg(trackedRequestMsgBytes, reqCodecs, replyTo);
     }
 
     /**
-     * Publishes a request message to the internal disruptor.
+     * Publishes a request message to the internal disruptor, applying the overload policy when the ring is full.
      *
      * @param trackedRequestMsg the request message to publish
      */
     void processTrackedRequestAsync(TrackedMsg<A> trackedRequestMsg) {
-        disruptor.publishEvent((event, sequence) -> {
-            event.req = trackedRequestMsg.getMsg();
-            event.jobId = trackedRequestMsg.getJobId();
-        });
+        if (trackedRequestMsg.isSignal()) {
+            return; // not a request
+        }
+        final RingBuffer<ReqRespEvent<A, B>> ringBuffer = disruptor.getRingBuffer();
+        final EventTranslatorOneArg<ReqRespEvent<A, B>, TrackedMsg<A>> translator = requestTranslator();
+        switch (overloadPolicy) {
+            case REJECT -> {
+                if (!ringBuffer.tryPublishEvent(translator, trackedRequestMsg)) {
+                    numRejected.increment();
+                    publishOverloadedResponse(trackedRequestMsg);
+                }
+            }
+            case DROP_OLDEST -> {
+                if (!ringBuffer.tryPublishEvent(translator, trackedRequestMsg)) {
+                    // shed the oldest half of the ring, then wait for the workers to skip through it
+                    dropBeforeSequence = ringBuffer.getCursor() + 1L - (ringBuffer.getBufferSize() / 2);
+                    ringBuffer.publishEvent(translator, trackedRequestMsg);
+                }
+            }
+            default -> ringBuffer.publishEvent(translator, trackedRequestMsg);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    EventTranslatorOneArg<ReqRespEvent<A, B>, TrackedMsg<A>> requestTranslator() {
+        return (EventTranslatorOneArg) REQUEST_TRANSLATOR;
     }
 
     /**
      * Handles a request event from the internal disruptor.
+     * The response is stored in the same event, for the downstream response handler.
      *
      * @param event
      * @param sequence
@@ -143,35 +480,133 @@ public class ServerCore<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>
         if (requestMsg == null) {
             return;
         }
-        B responseMsg = prepareResponse(requestMsg);
-        processTrackedResponseAsync(new TrackedMsg<>(event.jobId, responseMsg));
+        if (sequence < dropBeforeSequence) {
+            numDropped.increment();
+            event.overloaded = true;
+            return;
+        }
+        if (asyncLogic != null) {
+            startAsyncResponse(event);
+            return;
+        }
+        event.resp = prepareResponse(requestMsg);
     }
 
     /**
-     * Publishes a response message to the internal disruptor.
+     * Starts the async business logic for a request, waiting for an in-flight permit first.
+     * The response is published when the logic completes, so the event is left without a response.
+     * Waiting for a permit backs the requests up into the ring, where the overload policy applies.
+     * Once the server is stopping, the worker stops waiting, and sheds the request, so that draining the ring
+     * on shutdown does not hang behind stages that never complete.
      *
-     * @param trackedResponseMsg the response message to publish
+     * @param event the request event
      */
-    void processTrackedResponseAsync(TrackedMsg<B> trackedResponseMsg) {
-        disruptor.publishEvent((event, sequence) -> {
-            event.resp = trackedResponseMsg.getMsg();
-            event.jobId = trackedResponseMsg.getJobId();
+    void startAsyncResponse(ReqRespEvent<A, B> event) {
+        try {
+            boolean acquired = inFlightPermits.tryAcquire();
+            while (!acquired && running) {
+                acquired = inFlightPermits.tryAcquire(PERMIT_WAIT.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            if (!acquired) {
+                numDropped.increment();
+                event.overloaded = true;
+                return;
+            }
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            event.overloaded = true;
+            return;
+        }
+        final TrackedMsg<A> trackedRequestMsg = event.trackedReq;
+        final CompletionStage<B> stage;
+        try {
+            stage = asyncLogic.apply(event.req);
+        } catch (RuntimeException rex) {
+            inFlightPermits.release();
+            numAsyncFailures.increment();
+            event.failed = true;
+            return;
+        }
+        stage.whenComplete((responseMsg, error) -> {
+            try {
+                if (asyncResponsesClosed) {
+                    return;
+                }
+                if (error != null) {
+                    // tell the client right away, rather than leaving it to time out
+                    numAsyncFailures.increment();
+                    publishResponse(trackedRequestMsg.replyFailed());
+                } else if (responseMsg != null) {
+                    publishResponse(trackedRequestMsg.reply(responseMsg));
+                }
+            } finally {
+                inFlightPermits.release();
+            }
         });
     }
 
     /**
      * Handles a response event from the internal disruptor.
+     * Runs after the request workers have finished with the event.
+     * <p>
+     * With response batching, the responses are held until the end of the disruptor batch,
+     * or until maxResponseBatch responses or maxResponseDelay, then published together, with one flush.
      *
      * @param event
      * @param sequence
      * @param endOfBatch
      */
     void handleResponseEvent(ReqRespEvent<A, B> event, long sequence, boolean endOfBatch) {
-        B responseMsg = event.resp;
-        if (responseMsg == null) {
+        final TrackedMsg<B> trackedResponseMsg;
+        if (event.overloaded) {
+            trackedResponseMsg = event.trackedReq.replyOverloaded();
+        } else if (event.failed) {
+            trackedResponseMsg = event.trackedReq.replyFailed();
+        } else if (event.resp != null) {
+            trackedResponseMsg = event.trackedReq.reply(event.resp);
+        } else {
+            trackedResponseMsg = null;
+        }
+        if (maxResponseBatch <= 1) {
+            if (trackedResponseMsg != null) {
+                publishResponse(trackedResponseMsg);
+            }
             return;
         }
-        publishResponse(new TrackedMsg<>(event.jobId, responseMsg));
+        if (trackedResponseMsg != null) {
+            if (pendingResponses.isEmpty()) {
+                responseBatchStartNanos = System.nanoTime();
+            }
+            pendingResponses.add(trackedResponseMsg);
+        }
+        if (!pendingResponses.isEmpty()
+                && (endOfBatch
+                || pendingResponses.size() >= maxResponseBatch
+                || System.nanoTime() - responseBatchStartNanos >= maxResponseDelayNanos)) {
+            flushResponses();
+        }
+    }
+
+    /**
+     * Publishes the pending responses, then flushes the NATS connection once for all of them.
+     */
+    void flushResponses() {
+        final int batchSize = pendingResponses.size();
+        for (int i = 0; i < batchSize; i++) {
+            publishResponse(pendingResponses.get(i));
+        }
+        pendingResponses.clear();
+        numResponseBatches.increment();
+        numBatchedResponses.add(batchSize);
+        maxResponseBatchSize.accumulate(batchSize);
+        final List<Connection> conns = getConnections();
+        for (int i = 0; i < conns.size(); i++) {
+            try {
+                conns.get(i).flushBuffer();
+            } catch (IOException ioex) {
+                // not connected, the NATS client sends the buffered responses when it reconnects
+            }
+        }
     }
 
     /**
@@ -184,30 +619,380 @@ public class ServerCore<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>
     }
 
     /**
-     * Serializes a response message to a byte array.
+     * Publishes a response message to its reply subject, or to the NATS sendRespSubject,
+     * in the same format and header mode as its request.
      *
-     * @param trackedResponseMsg the response message to serialize
-     * @return the serialized response message
+     * @param trackedResponseMsg the response message to publish
      */
-    byte[] serializeTrackedResponse(TrackedMsg<B> trackedResponseMsg) {
-        return JobIdSerdeHelper.prependPayloadWithJobId(trackedResponseMsg.getJobId(), respMsgSerializer.apply(trackedResponseMsg.getMsg()));
+    void publishResponse(TrackedMsg<B> trackedResponseMsg) {
+        JobIdSerdeHelper.publishTrackedMsg(this, trackedResponseMsg, respCodecs.get(trackedResponseMsg.getFormatId()),
+                responseSubject(trackedResponseMsg.getReplyTo()), null, getConnection(trackedResponseMsg.getClientHash()));
+    }
+
+    String responseSubject(String replyTo) {
+        return replyTo != null ? replyTo : sendRespSubject;
     }
 
     /**
-     * Publishes a response message to the NATS publishSubject.
+     * Publishes an "overloaded" response, telling the client that its request was not processed.
      *
-     * @param trackedResponseMsg the response message to publish
+     * @param trackedRequestMsg the request that was not processed
      */
-    void publishResponse(TrackedMsg<B> trackedResponseMsg) {
-        publish(trackedResponseMsg, this::serializeTrackedResponse, sendRespSubject, getConnection());
+    void publishOverloadedResponse(TrackedMsg<A> trackedRequestMsg) {
+        publishResponse(trackedRequestMsg.replyOverloaded());
+    }
+
+    /**
+     * @return the number of requests rejected by OverloadPolicy.REJECT
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    /**
+     * @return the number of queued requests shed by OverloadPolicy.DROP_OLDEST, or because the server was stopping
+     */
+    public long getNumDropped() {
+        return numDropped.sum();
+    }
+
+    /**
+     * @return the number of async business logic calls that threw or completed exceptionally
+     */
+    public long getNumAsyncFailures() {
+        return numAsyncFailures.sum();
+    }
+
+    /**
+     * @return the number of async business logic calls that have not completed yet
+     */
+    public int getNumInFlight() {
+        return inFlightPermits != null ? maxInFlight - inFlightPermits.availablePermits() : 0;
+    }
+
+    /**
+     * @return the average number of requests per batch logic call, with batch business logic
+     */
+    public double getAvgLogicBatchSize() {
+        final long numBatches = numLogicBatches.sum();
+        return numBatches == 0L ? 0.0 : (double) numBatchedRequests.sum() / numBatches;
+    }
+
+    /**
+     * @return the number of response batches flushed, with response batching
+     */
+    public long getNumResponseBatches() {
+        return numResponseBatches.sum();
+    }
+
+    /**
+     * @return the average number of responses per flushed batch, with response batching
+     */
+    public double getAvgResponseBatchSize() {
+        final long numBatches = numResponseBatches.sum();
+        return numBatches == 0L ? 0.0 : (double) numBatchedResponses.sum() / numBatches;
+    }
+
+    /**
+     * @return the largest number of responses in one flushed batch, with response batching
+     */
+    public long getMaxResponseBatchSize() {
+        return maxResponseBatchSize.get();
     }
 
     /**
      * Override this method to perform side work in the main run() loop.
-     * By default, this method does nothing.
+     * By default, this method runs the due tasks of the side work scheduler.
+     *
+     * @return the amount of work done, 0 lets the run() thread idle
+     */
+    int performSideWork() {
+        return sideWorkScheduler.doWork();
+    }
+
+    /**
+     * Builds a ServerCore with tunable disruptor settings.
+     * Settings that are not set explicitly come from the profile, which defaults to {@link ServerProfile#DEFAULT}.
+     *
+     * @param <A> the type of the request message
+     * @param <B> the type of the response message
      */
-    void performSideWork() {
-        // use you imagination...
-        // TODO: make this a pluggable Runnable instead?
+    public static class Builder<A, B> {
+        String rcvReqSubject;
+        String sendRespSubject;
+        String queueGroup;
+        int connectionPoolSize = 1;
+        PayloadDeserializer<A> reqMsgDeserializer;
+        Function<A, B> businessLogic;
+        Function<List<A>, List<B>> batchLogic;
+        int maxLogicBatch;
+        Function<A, CompletionStage<B>> asyncLogic;
+        Function<A, B> virtualThreadLogic;
+        int maxInFlight;
+        Function<B, byte[]> respMsgSerializer;
+        int numWorkers = 1;
+        ServerProfile profile = ServerProfile.DEFAULT;
+        Integer ringSize;
+        WaitStrategyType waitStrategyType;
+        ProducerType producerType = ProducerType.MULTI;
+        ThreadFactory threadFactory = DaemonThreadFactory.INSTANCE;
+        OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+        int maxResponseBatch = 1;
+        Duration maxResponseDelay = Duration.ZERO;
+        final List<Codec<A>> reqCodecs = new ArrayList<>();
+        final List<Codec<B>> respCodecs = new ArrayList<>();
+
+        public Builder<A, B> rcvReqSubject(String rcvReqSubject) {
+            this.rcvReqSubject = rcvReqSubject;
+            return this;
+        }
+
+        public Builder<A, B> sendRespSubject(String sendRespSubject) {
+            this.sendRespSubject = sendRespSubject;
+            return this;
+        }
+
+        /**
+         * Subscribes to rcvReqSubject as a member of a NATS queue group, so that each request
+         * goes to only one of the servers in the group, instead of to all of them.
+         *
+         * @param queueGroup the queue group name, or null (the default) for a plain subscription
+         */
+        public Builder<A, B> queueGroup(String queueGroup) {
+            this.queueGroup = queueGroup;
+            return this;
+        }
+
+        /**
+         * Sets the number of NATS connections, see {@link ServerCore#setConnectionPoolSize}.
+         * With a queue group, each connection subscribes with its own dispatcher thread,
+         * so ProducerType.SINGLE is only allowed with a pool size of 1.
+         *
+         * @param connectionPoolSize at least 1, defaults to 1
+         */
+        public Builder<A, B> connectionPoolSize(int connectionPoolSize) {
+            this.connectionPoolSize = connectionPoolSize;
+            return this;
+        }
+
+        public Builder<A, B> reqMsgDeserializer(Function<byte[], A> reqMsgDeserializer) {
+            this.reqMsgDeserializer = reqMsgDeserializer != null ? PayloadDeserializer.of(reqMsgDeserializer) : null;
+            return this;
+        }
+
+        /**
+         * Like reqMsgDeserializer, but the deserializer reads the request payload in place,
+         * from a view over the NATS message data, so the payload is never copied.
+         */
+        public Builder<A, B> reqPayloadDeserializer(PayloadDeserializer<A> reqPayloadDeserializer) {
+            this.reqMsgDeserializer = reqPayloadDeserializer;
+            return this;
+        }
+
+        /**
+         * Adds a request and response codec pair, for one format. Can be called once per format.
+         * Requests in that format are decoded with reqCodec, and their responses encoded with respCodec.
+         * Without reqMsgDeserializer and respMsgSerializer, the first pair also handles requests that do not say their format.
+         *
+         * @param reqCodec  the request codec
+         * @param respCodec the response codec, with the same format ID
+         */
+        public Builder<A, B> codecs(Codec<A> reqCodec, Codec<B> respCodec) {
+            if (reqCodec.formatId() != respCodec.formatId()) {
+                throw new IllegalArgumentException("reqCodec and respCodec must have the same formatId");
+            }
+            this.reqCodecs.add(reqCodec);
+            this.respCodecs.add(respCodec);
+            return this;
+        }
+
+        public Builder<A, B> businessLogic(Function<A, B> businessLogic) {
+            this.businessLogic = businessLogic;
+            return this;
+        }
+
+        /**
+         * Sets batch business logic, instead of the per request businessLogic.
+         * It is called with the requests that the disruptor delivered in one batch, up to maxLogicBatch of them,
+         * and must return one response per request, in the same order.
+         * The request list is reused, so the logic must not keep it.
+         *
+         * @param batchLogic    converts a list of requests to a list of responses
+         * @param maxLogicBatch the most requests per call (at least 1)
+         */
+        public Builder<A, B> batchLogic(Function<List<A>, List<B>> batchLogic, int maxLogicBatch) {
+            this.batchLogic = batchLogic;
+            this.maxLogicBatch = maxLogicBatch;
+            return this;
+        }
+
+        /**
+         * Sets async business logic, instead of the per request businessLogic.
+         * The workers start the logic and move on, and each response is published as soon as its stage completes.
+         * When maxInFlight requests have not completed yet, the workers wait, and the requests back up into the ring.
+         * Requests whose logic throws, or whose stage completes exceptionally, get a "failed" response,
+         * so the client does not wait for its timeout, see getNumAsyncFailures.
+         * When the server stops, it waits a few seconds for the calls in flight before closing its connections.
+         *
+         * @param asyncLogic  converts a request to a stage that completes with the response
+         * @param maxInFlight the most requests in flight at once (at least 1)
+         */
+        public Builder<A, B> asyncLogic(Function<A, CompletionStage<B>> asyncLogic, int maxInFlight) {
+            this.asyncLogic = asyncLogic;
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sets blocking business logic, e.g. with I/O, that runs on a virtual thread per request,
+         * instead of on the worker threads. Works like asyncLogic otherwise.
+         *
+         * @param blockingLogic converts a request to a response, and may block
+         * @param maxInFlight   the most requests in flight at once (at least 1)
+         */
+        public Builder<A, B> virtualThreadLogic(Function<A, B> blockingLogic, int maxInFlight) {
+            this.virtualThreadLogic = blockingLogic;
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder<A, B> respMsgSerializer(Function<B, byte[]> respMsgSerializer) {
+            this.respMsgSerializer = respMsgSerializer;
+            return this;
+        }
+
+        /**
+         * @param numWorkers the number of business logic worker threads (at least 1)
+         */
+        public Builder<A, B> numWorkers(int numWorkers) {
+            this.numWorkers = numWorkers;
+            return this;
+        }
+
+        /**
+         * @param profile the profile that supplies the ring size and wait strategy, unless they are set explicitly
+         */
+        public Builder<A, B> profile(ServerProfile profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        /**
+         * @param ringSize the disruptor ring size (must be a power of 2)
+         */
+        public Builder<A, B> ringSize(int ringSize) {
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        public Builder<A, B> waitStrategy(WaitStrategyType waitStrategyType) {
+            this.waitStrategyType = waitStrategyType;
+            return this;
+        }
+
+        /**
+         * ProducerType.SINGLE is only safe while a single thread publishes into the ring.
+         * That holds with one NATS connection, or without a queue group, when ServerCore subscribes
+         * with a single dispatcher. With a queue group and a connection pool, each connection has its
+         * own dispatcher thread, so the pool size must stay 1 with SINGLE.
+         *
+         * @param producerType the disruptor producer type
+         */
+        public Builder<A, B> producerType(ProducerType producerType) {
+            this.producerType = producerType;
+            return this;
+        }
+
+        /**
+         * Use this to name the consumer threads, set their priority or pin them to cores
+         * with an affinity library.
+         *
+         * @param threadFactory the factory for the disruptor consumer threads
+         */
+        public Builder<A, B> threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * @param overloadPolicy what to do with new requests when the ring is full, defaults to BLOCK
+         */
+        public Builder<A, B> overloadPolicy(OverloadPolicy overloadPolicy) {
+            this.overloadPolicy = overloadPolicy;
+            return this;
+        }
+
+        /**
+         * Turns on response batching: the responses of a disruptor batch are published together,
+         * and the NATS connection is flushed once per batch, instead of once per response.
+         * A light load gives batches of 1, so responses are not held back then.
+         *
+         * @param maxResponseBatch the most responses to hold before flushing (1 turns batching off)
+         * @param maxResponseDelay the longest time to hold a response before flushing
+         */
+        public Builder<A, B> responseBatching(int maxResponseBatch, Duration maxResponseDelay) {
+            this.maxResponseBatch = maxResponseBatch;
+            this.maxResponseDelay = maxResponseDelay;
+            return this;
+        }
+
+        int getRingSize() {
+            return ringSize != null ? ringSize : profile.getRingSize();
+        }
+
+        WaitStrategyType getWaitStrategyType() {
+            return waitStrategyType != null ? waitStrategyType : profile.getWaitStrategyType();
+        }
+
+        CodecRegistry<A> createReqCodecs() {
+            final CodecRegistry<A> registry = new CodecRegistry<>(reqMsgDeserializer != null && respMsgSerializer != null
+                    ? Codec.of(Codec.FORMAT_DEFAULT, null, reqMsgDeserializer)
+                    : reqCodecs.get(0));
+            reqCodecs.forEach(registry::register);
+            return registry;
+        }
+
+        CodecRegistry<B> createRespCodecs() {
+            final CodecRegistry<B> registry = new CodecRegistry<>(reqMsgDeserializer != null && respMsgSerializer != null
+                    ? Codec.of(Codec.FORMAT_DEFAULT, respMsgSerializer, null)
+                    : respCodecs.get(0));
+            respCodecs.forEach(registry::register);
+            return registry;
+        }
+
+        void validate() {
+            if (numWorkers < 1) {
+                throw new IllegalArgumentException("numWorkers must be at least 1");
+            }
+            final int size = getRingSize();
+            if (size < 1 || Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("ringSize must be a power of 2");
+            }
+            if ((reqMsgDeserializer == null || respMsgSerializer == null) && reqCodecs.isEmpty()) {
+                throw new IllegalArgumentException("reqMsgDeserializer and respMsgSerializer, or codecs, must be set");
+            }
+            final int numLogics = (businessLogic != null ? 1 : 0) + (batchLogic != null ? 1 : 0)
+                    + (asyncLogic != null ? 1 : 0) + (virtualThreadLogic != null ? 1 : 0);
+            if (numLogics != 1) {
+                throw new IllegalArgumentException("exactly one of businessLogic, batchLogic, asyncLogic and virtualThreadLogic must be set");
+            }
+            if ((asyncLogic != null || virtualThreadLogic != null) && maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            if (batchLogic != null && maxLogicBatch < 1) {
+                throw new IllegalArgumentException("maxLogicBatch must be at least 1");
+            }
+            if (maxResponseBatch < 1 || maxResponseDelay == null || maxResponseDelay.isNegative()) {
+                throw new IllegalArgumentException("maxResponseBatch must be at least 1, and maxResponseDelay must be non-negative");
+            }
+            if (producerType == null || threadFactory == null || overloadPolicy == null) {
+                throw new IllegalArgumentException("producerType, threadFactory and overloadPolicy must be non-null");
+            }
+            checkConnectionPoolSize(connectionPoolSize, queueGroup, producerType);
+        }
+
+        public ServerCore<A, B> build() {
+            return new ServerCore<>(this);
+        }
     }
 }
@@ -0,0 +1,14 @@
+package xyz.mattring.crystan.service;
+
+/**
+ * Signals that the server ran the business logic on a request, and it failed.
+ * Unlike an overloaded request, the job may have had side effects, so it is not safe to retry blindly.
+ */
+public class ServerFailureException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerFailureException(String jobId) {
+        super("business logic failed on job " + jobId);
+    }
+}
@@ -0,0 +1,13 @@
+package xyz.mattring.crystan.service;
+
+/**
+ * Signals that the server was too busy to process a request, so the client should back off.
+ */
+public class ServerOverloadedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerOverloadedException(String jobId) {
+        super("server was overloaded and did not process job " + jobId);
+    }
+}
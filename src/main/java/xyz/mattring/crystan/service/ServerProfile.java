@@ -0,0 +1,40 @@
+package xyz.mattring.crystan.service;
+
+/**
+ * Named ServerCore tuning profiles, trading CPU usage for tail latency.
+ * Individual settings can still be overridden on the ServerCore.Builder.
+ */
+public enum ServerProfile {
+    /**
+     * The original ServerCore settings: blocking wait strategy and a 1024 slot ring.
+     */
+    DEFAULT(WaitStrategyType.BLOCKING, 1024),
+    /**
+     * Low idle CPU usage with better latency than DEFAULT.
+     */
+    BALANCED(WaitStrategyType.SLEEPING, 4096),
+    /**
+     * A big ring to absorb bursts, with yielding consumers.
+     */
+    THROUGHPUT(WaitStrategyType.YIELDING, 16384),
+    /**
+     * Busy spinning consumers. Only use this when there is a spare core for every consumer thread.
+     */
+    LOW_LATENCY(WaitStrategyType.BUSY_SPIN, 1024);
+
+    private final WaitStrategyType waitStrategyType;
+    private final int ringSize;
+
+    ServerProfile(WaitStrategyType waitStrategyType, int ringSize) {
+        this.waitStrategyType = waitStrategyType;
+        this.ringSize = ringSize;
+    }
+
+    public WaitStrategyType getWaitStrategyType() {
+        return waitStrategyType;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+}
@@ -1,92 +1,360 @@
 package xyz.mattring.crystan.service;
 
 import io.nats.client.Dispatcher;
+import io.nats.client.Message;
 import io.nats.client.Subscription;
+import xyz.mattring.crystan.cache.PartsCache;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.codec.CodecRegistry;
 import xyz.mattring.crystan.json.JsonConverter;
 import xyz.mattring.crystan.msgbus.BusConnector;
 import xyz.mattring.crystan.msgbus.Publisher;
 import xyz.mattring.crystan.msgbus.Subscriber;
-import xyz.mattring.crystan.util.BytesConverter;
+import xyz.mattring.crystan.sched.SideWorkScheduler;
+import xyz.mattring.crystan.util.MpscArrayQueue;
 import xyz.mattring.crystan.util.Tuple2;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * Receives requests and sends responses.
- * Assumes JSON message format with prepended jobId bytes.
+ * Assumes JSON message format with prepended jobId bytes, unless it is created with codecs.
+ * More formats can be added with addCodecs. Each response is encoded in the format of its request.
+ * Responses go to the request's NATS reply subject when it has one, otherwise to subjectB.
+ * When a request carries its Job ID in NATS headers, so does its response.
+ * <p>
+ * Requests wait in a bounded queue, which the run() thread drains in batches.
+ * When the queue is full, the {@link OverloadPolicy} decides whether the NATS dispatcher thread waits,
+ * the new request is rejected, or the oldest queued requests are shed.
  *
  * @param <A> reqType
  * @param <B> respType
  */
 public class SingleThreadServer<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>, Publisher<TrackedMsg<B>>, Runnable {
 
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_DRAIN_BATCH = 256;
+    static final long BLOCKED_PARK_NANOS = 10_000L;
+
     private final String subjectA;
     private final String subjectB;
-    private boolean running = false;
-    final Queue<TrackedMsg<A>> reqQueue;
+    String queueGroup;
+    int connectionPoolSize = 1;
+    volatile boolean running = false;
+    final SideWorkScheduler sideWorkScheduler = new SideWorkScheduler();
+    MpscArrayQueue<TrackedMsg<A>> reqQueue = new MpscArrayQueue<>(DEFAULT_QUEUE_CAPACITY);
+    int maxDrainBatch = DEFAULT_MAX_DRAIN_BATCH;
+    OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    final LongAdder numRejected = new LongAdder();
+    final LongAdder numDropped = new LongAdder();
+    /**
+     * With OverloadPolicy.DROP_OLDEST, the run() thread sheds the requests below this queue index.
+     */
+    volatile long dropBeforeIndex = 0L;
+    long nextDequeueIndex = 0L;
+    final Consumer<TrackedMsg<A>> queuedRequestHandler = this::handleQueuedRequest;
     final JsonConverter jsonConverter;
     final Class<A> reqType;
     final Function<A, B> reqHandler;
+    final CodecRegistry<A> reqCodecs;
+    final CodecRegistry<B> respCodecs;
 
     public SingleThreadServer(String subjectA, String subjectB, Class<A> reqType, Function<A, B> reqHandler) {
         this.subjectA = subjectA;
         this.subjectB = subjectB;
-        this.reqQueue = new ConcurrentLinkedQueue<>();
         this.jsonConverter = new JsonConverter() {
         };
         this.reqType = reqType;
         this.reqHandler = reqHandler;
+        this.reqCodecs = new CodecRegistry<>(jsonReqCodec(jsonConverter, reqType));
+        this.respCodecs = new CodecRegistry<>(jsonRespCodec(jsonConverter));
+    }
+
+    /**
+     * Creates a server whose default format is given by a codec pair, instead of JSON.
+     *
+     * @param reqCodec  the request codec
+     * @param respCodec the response codec, with the same format ID
+     */
+    public SingleThreadServer(String subjectA, String subjectB, Codec<A> reqCodec, Codec<B> respCodec, Function<A, B> reqHandler) {
+        checkSameFormat(reqCodec, respCodec);
+        this.subjectA = subjectA;
+        this.subjectB = subjectB;
+        this.jsonConverter = null;
+        this.reqType = null;
+        this.reqHandler = reqHandler;
+        this.reqCodecs = new CodecRegistry<>(reqCodec);
+        this.respCodecs = new CodecRegistry<>(respCodec);
+    }
+
+    static void checkSameFormat(Codec<?> reqCodec, Codec<?> respCodec) {
+        if (reqCodec.formatId() != respCodec.formatId()) {
+            throw new IllegalArgumentException("reqCodec and respCodec must have the same formatId");
+        }
+    }
+
+    /**
+     * Adds a request and response codec pair, for one more format.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param reqCodec  the request codec
+     * @param respCodec the response codec, with the same format ID
+     */
+    public void addCodecs(Codec<A> reqCodec, Codec<B> respCodec) {
+        checkSameFormat(reqCodec, respCodec);
+        if (!running) {
+            reqCodecs.register(reqCodec);
+            respCodecs.register(respCodec);
+        }
+    }
+
+    /**
+     * Subscribes to the request subject as a member of a NATS queue group, so that each request
+     * goes to only one of the servers in the group, instead of to all of them.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param queueGroup the queue group name, or null (the default) for a plain subscription
+     */
+    public void setQueueGroup(String queueGroup) {
+        if (!running) {
+            this.queueGroup = queueGroup;
+        }
+    }
+
+    /**
+     * Sets the number of NATS connections. With a queue group, each of them subscribes to subjectA,
+     * and responses are published through the connection picked by the client's Job ID hash.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param connectionPoolSize at least 1, defaults to 1
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        if (connectionPoolSize < 1) {
+            throw new IllegalArgumentException("connectionPoolSize must be at least 1");
+        }
+        if (!running) {
+            this.connectionPoolSize = connectionPoolSize;
+        }
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    /**
+     * Sets the request queue capacity, which is rounded up to a power of 2.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param queueCapacity the maximum number of queued requests, defaults to DEFAULT_QUEUE_CAPACITY
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (!running) {
+            this.reqQueue = new MpscArrayQueue<>(queueCapacity);
+        }
+    }
+
+    /**
+     * Sets the maximum number of requests handled per pass of the run() loop, between side work.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param maxDrainBatch at least 1, defaults to DEFAULT_MAX_DRAIN_BATCH
+     */
+    public void setMaxDrainBatch(int maxDrainBatch) {
+        if (maxDrainBatch < 1) {
+            throw new IllegalArgumentException("maxDrainBatch must be at least 1");
+        }
+        if (!running) {
+            this.maxDrainBatch = maxDrainBatch;
+        }
+    }
+
+    /**
+     * Sets what happens to new requests when the request queue is full.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param overloadPolicy defaults to BLOCK
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        if (overloadPolicy == null) {
+            throw new IllegalArgumentException("overloadPolicy must be non-null");
+        }
+        if (!running) {
+            this.overloadPolicy = overloadPolicy;
+        }
     }
 
+    /**
+     * Queues a request, applying the overload policy when the queue is full.
+     * Runs on the NATS dispatcher thread.
+     *
+     * @param req the request
+     */
     void enqueueRequest(TrackedMsg<A> req) {
-        reqQueue.add(req);
+        if (req.isSignal()) {
+            return; // not a request
+        }
+        if (!reqQueue.offer(req)) {
+            switch (overloadPolicy) {
+                case REJECT -> {
+                    numRejected.increment();
+                    sendResponse(req.replyOverloaded());
+                    return;
+                }
+                case DROP_OLDEST -> {
+                    // shed the oldest half of the queue, then wait for the run() thread to skip through it
+                    dropBeforeIndex = Math.max(dropBeforeIndex, reqQueue.currentConsumerIndex() + reqQueue.capacity() / 2);
+                    offerBlocking(req);
+                }
+                default -> offerBlocking(req);
+            }
+        }
+        sideWorkScheduler.wake();
+    }
+
+    void offerBlocking(TrackedMsg<A> req) {
+        while (!reqQueue.offer(req)) {
+            if (!running) {
+                return;
+            }
+            sideWorkScheduler.wake();
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+        }
     }
 
     @Override
     public void run() {
         running = true;
-        Tuple2<Dispatcher, Subscription> subParts = subscribe(
+        List<Tuple2<Dispatcher, Subscription>> subParts = subscribeToMessages(
                 this::enqueueRequest,
                 this::deserializeRequest,
                 subjectA,
-                getConnection());
-        while (running) {
-            TrackedMsg<A> req = reqQueue.poll();
-            if (req != null) {
-                TrackedMsg<B> resp = processRequest(req);
-                sendResponse(resp);
-            }
+                queueGroup,
+                getConnections());
+        sideWorkScheduler.runWhile(() -> running, this::doWork);
+        Subscriber.unsubscribeAll(subParts);
+        closeConnections();
+        PartsCache.evict(this);
+        if (jsonConverter != null) {
+            PartsCache.evict(jsonConverter);
         }
-        subParts._1().unsubscribe(subParts._2());
     }
 
     public void stop() {
         running = false;
+        sideWorkScheduler.wake();
+    }
+
+    /**
+     * Returns the scheduler for periodic side work, which runs on the run() thread.
+     * Use it to schedule tasks or to set the idle strategy BEFORE the server is started.
+     *
+     * @return the side work scheduler
+     */
+    public SideWorkScheduler getSideWorkScheduler() {
+        return sideWorkScheduler;
+    }
+
+    /**
+     * One pass of the run() loop: handles a batch of queued requests, plus any due side work.
+     *
+     * @return the amount of work done, 0 lets the run() thread idle
+     */
+    int doWork() {
+        final int workCount = reqQueue.drain(queuedRequestHandler, maxDrainBatch);
+        return workCount + performSideWork();
+    }
+
+    void handleQueuedRequest(TrackedMsg<A> req) {
+        if (nextDequeueIndex++ < dropBeforeIndex) {
+            numDropped.increment();
+            sendResponse(req.replyOverloaded());
+            return;
+        }
+        TrackedMsg<B> resp = processRequest(req);
+        sendResponse(resp);
+    }
+
+    /**
+     * Override this method to perform side work in the main run() loop.
+     * By default, this method runs the due tasks of the side work scheduler.
+     *
+     * @return the amount of work done, 0 lets the run() thread idle
+     */
+    int performSideWork() {
+        return sideWorkScheduler.doWork();
     }
 
     TrackedMsg<A> deserializeRequest(byte[] reqBytes) {
-        final Tuple2<String, byte[]> jobIdAndPayload = JobIdSerdeHelper.splitJobIdAndPayload(reqBytes);
-        final A req = jsonConverter.fromJson(BytesConverter.bytesToUtf8(jobIdAndPayload._2()), reqType);
-        return new TrackedMsg<>(jobIdAndPayload._1(), req);
+        return deserializeRequest(reqBytes, null);
+    }
+
+    TrackedMsg<A> deserializeRequest(Message natsMsg) {
+        return JobIdSerdeHelper.readFormattedTrackedMsg(natsMsg, reqCodecs);
+    }
+
+    TrackedMsg<A> deserializeRequest(byte[] reqBytes, String replyTo) {
+        return JobIdSerdeHelper.readFormattedTrackedMsg(reqBytes, reqCodecs, replyTo);
     }
 
     TrackedMsg<B> processRequest(TrackedMsg<A> req) {
-        final String jobId = req.getJobId();
         final A reqMsg = req.getMsg();
         final B respMsg = reqHandler.apply(reqMsg);
-        return new TrackedMsg<>(jobId, respMsg);
+        return req.reply(respMsg);
+    }
+
+    /**
+     * The default request codec, which reads JSON in place from the request payload.
+     */
+    static <A> Codec<A> jsonReqCodec(JsonConverter jsonConverter, Class<A> reqType) {
+        return Codec.of(Codec.FORMAT_DEFAULT, null, (bytes, offset, length) -> jsonConverter.fromJson(bytes, offset, length, reqType));
     }
 
-    byte[] serializeResponse(TrackedMsg<B> resp) {
-        final String jobId = resp.getJobId();
-        final String msgJson = jsonConverter.toJson(resp.getMsg());
-        return JobIdSerdeHelper.prependPayloadWithJobId(jobId, BytesConverter.utf8ToBytes(msgJson));
+    /**
+     * The default response codec, which writes JSON straight into the publish buffer.
+     */
+    static <B> Codec<B> jsonRespCodec(JsonConverter jsonConverter) {
+        return Codec.of(Codec.FORMAT_DEFAULT, jsonConverter::toJsonBytes, jsonConverter::writeJson, null);
     }
 
     void sendResponse(TrackedMsg<B> resp) {
-        publish(resp, this::serializeResponse, subjectB, getConnection());
+        final String subject = resp.getReplyTo() != null ? resp.getReplyTo() : subjectB;
+        JobIdSerdeHelper.publishTrackedMsg(this, resp, respCodecs.get(resp.getFormatId()), subject, null, getConnection(resp.getClientHash()));
+    }
+
+    /**
+     * @return the number of requests waiting in the request queue
+     */
+    public int getQueueDepth() {
+        return reqQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return reqQueue.capacity();
+    }
+
+    /**
+     * @return the number of requests rejected by OverloadPolicy.REJECT
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    /**
+     * @return the number of queued requests shed by OverloadPolicy.DROP_OLDEST
+     */
+    public long getNumDropped() {
+        return numDropped.sum();
     }
 
 }
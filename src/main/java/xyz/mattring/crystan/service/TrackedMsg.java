@@ -1,21 +1,226 @@
 package xyz.mattring.crystan.service;
 
+/**
+ * A message with the Job ID that correlates a request with its response.
+ * <p>
+ * The Job ID is either a legacy String, or a binary client ID hash plus job sequence number.
+ * The format ID says which codec the payload is encoded with. 0 means the receiver's default format.
+ *
+ * @param <T> the message type
+ */
 public class TrackedMsg<T> {
 
     private final String jobId;
+    private final int clientHash;
+    private final long jobSeq;
     private final T msg;
+    private final String replyTo;
+    private final boolean overloaded;
+    private final boolean failed;
+    private final boolean jobIdInHeaders;
+    private final byte formatId;
 
     public TrackedMsg(String jobId, T msg) {
+        this(jobId, 0, 0L, msg, null, false, false, false, (byte) 0);
+    }
+
+    /**
+     * @param jobId   the job ID
+     * @param msg     the message
+     * @param replyTo the subject that the response should be published to, or null for the server's default response subject
+     */
+    public TrackedMsg(String jobId, T msg, String replyTo) {
+        this(jobId, 0, 0L, msg, replyTo, false, false, false, (byte) 0);
+    }
+
+    /**
+     * Creates a message with a binary Job ID.
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @param msg        the message
+     * @param replyTo    the subject that the response should be published to, or null for the server's default response subject
+     */
+    public TrackedMsg(int clientHash, long jobSeq, T msg, String replyTo) {
+        this(clientHash, jobSeq, msg, replyTo, (byte) 0);
+    }
+
+    /**
+     * Creates a message with a binary Job ID, whose payload is encoded in the given format.
+     *
+     * @param clientHash the hash of the client ID
+     * @param jobSeq     the job sequence number
+     * @param msg        the message
+     * @param replyTo    the subject that the response should be published to, or null for the server's default response subject
+     * @param formatId   the format ID of the payload codec
+     */
+    public TrackedMsg(int clientHash, long jobSeq, T msg, String replyTo, byte formatId) {
+        this(null, clientHash, jobSeq, msg, replyTo, false, false, false, formatId);
+    }
+
+    private TrackedMsg(String jobId, int clientHash, long jobSeq, T msg, String replyTo, boolean overloaded, boolean failed, boolean jobIdInHeaders, byte formatId) {
         this.jobId = jobId;
+        this.clientHash = clientHash;
+        this.jobSeq = jobSeq;
         this.msg = msg;
+        this.replyTo = replyTo;
+        this.overloaded = overloaded;
+        this.failed = failed;
+        this.jobIdInHeaders = jobIdInHeaders;
+        this.formatId = formatId;
+    }
+
+    /**
+     * Creates a message without a payload, signalling that the server was overloaded and did not process the job.
+     *
+     * @param jobId   the job ID of the request that was not processed
+     * @param replyTo the reply subject of the request, or null
+     * @return overloaded message
+     */
+    public static <T> TrackedMsg<T> overloaded(String jobId, String replyTo) {
+        return new TrackedMsg<>(jobId, 0, 0L, null, replyTo, true, false, false, (byte) 0);
+    }
+
+    /**
+     * Creates a message without a payload, signalling that the server was overloaded and did not process the job.
+     *
+     * @param jobId the job ID of the request that was not processed
+     * @return overloaded message
+     */
+    public static <T> TrackedMsg<T> overloaded(String jobId) {
+        return overloaded(jobId, null);
+    }
+
+    /**
+     * Creates a message without a payload, signalling that the server was overloaded and did not process the job.
+     *
+     * @param clientHash the client ID hash of the request that was not processed
+     * @param jobSeq     the job sequence number of the request that was not processed
+     * @param replyTo    the reply subject of the request, or null
+     * @return overloaded message
+     */
+    public static <T> TrackedMsg<T> overloaded(int clientHash, long jobSeq, String replyTo) {
+        return new TrackedMsg<>(null, clientHash, jobSeq, null, replyTo, true, false, false, (byte) 0);
+    }
+
+    /**
+     * Creates a message without a payload, signalling that the business logic failed on the job.
+     *
+     * @param jobId   the job ID of the request that failed
+     * @param replyTo the reply subject of the request, or null
+     * @return failed message
+     */
+    public static <T> TrackedMsg<T> failed(String jobId, String replyTo) {
+        return new TrackedMsg<>(jobId, 0, 0L, null, replyTo, false, true, false, (byte) 0);
+    }
+
+    /**
+     * Creates a message without a payload, signalling that the business logic failed on the job.
+     *
+     * @param clientHash the client ID hash of the request that failed
+     * @param jobSeq     the job sequence number of the request that failed
+     * @param replyTo    the reply subject of the request, or null
+     * @return failed message
+     */
+    public static <T> TrackedMsg<T> failed(int clientHash, long jobSeq, String replyTo) {
+        return new TrackedMsg<>(null, clientHash, jobSeq, null, replyTo, false, true, false, (byte) 0);
+    }
+
+    /**
+     * Creates a response to this message, with the same Job ID, reply subject and format.
+     *
+     * @param resp the response message
+     * @return tracked response message
+     */
+    public <U> TrackedMsg<U> reply(U resp) {
+        return new TrackedMsg<>(jobId, clientHash, jobSeq, resp, replyTo, false, false, jobIdInHeaders, formatId);
+    }
+
+    /**
+     * Creates an overloaded response to this message, with the same Job ID and reply subject.
+     *
+     * @return overloaded message
+     */
+    public <U> TrackedMsg<U> replyOverloaded() {
+        return new TrackedMsg<>(jobId, clientHash, jobSeq, null, replyTo, true, false, jobIdInHeaders, formatId);
+    }
+
+    /**
+     * Creates a failed response to this message, with the same Job ID and reply subject.
+     *
+     * @return failed message
+     */
+    public <U> TrackedMsg<U> replyFailed() {
+        return new TrackedMsg<>(jobId, clientHash, jobSeq, null, replyTo, false, true, jobIdInHeaders, formatId);
+    }
+
+    /**
+     * Creates a copy of this message whose Job ID travels in NATS message headers, instead of being prepended to the payload.
+     *
+     * @return tracked message
+     */
+    public TrackedMsg<T> withJobIdInHeaders() {
+        return new TrackedMsg<>(jobId, clientHash, jobSeq, msg, replyTo, overloaded, failed, true, formatId);
     }
 
+    /**
+     * Creates a copy of this message, whose payload is encoded in the given format.
+     *
+     * @param formatId the format ID of the payload codec
+     * @return tracked message
+     */
+    public TrackedMsg<T> withFormatId(byte formatId) {
+        return new TrackedMsg<>(jobId, clientHash, jobSeq, msg, replyTo, overloaded, failed, jobIdInHeaders, formatId);
+    }
+
+    /**
+     * @return the legacy String Job ID, or a readable form of the binary Job ID
+     */
     public String getJobId() {
-        return jobId;
+        return jobId != null ? jobId : JobIdSerdeHelper.formatBinaryJobId(clientHash, jobSeq);
+    }
+
+    public boolean isBinaryJobId() {
+        return jobId == null;
+    }
+
+    public int getClientHash() {
+        return clientHash;
+    }
+
+    public long getJobSeq() {
+        return jobSeq;
     }
 
     public T getMsg() {
         return msg;
     }
 
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true for an overloaded or failed signal, which has no message
+     */
+    public boolean isSignal() {
+        return overloaded || failed;
+    }
+
+    public boolean isJobIdInHeaders() {
+        return jobIdInHeaders;
+    }
+
+    public byte getFormatId() {
+        return formatId;
+    }
+
 }
@@ -0,0 +1,276 @@
+package xyz.mattring.crystan.service;
+
+import io.nats.client.Dispatcher;
+import io.nats.client.Message;
+import io.nats.client.Subscription;
+import xyz.mattring.crystan.cache.PartsCache;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.codec.CodecRegistry;
+import xyz.mattring.crystan.msgbus.BusConnector;
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
+import xyz.mattring.crystan.msgbus.Publisher;
+import xyz.mattring.crystan.msgbus.Subscriber;
+import xyz.mattring.crystan.sched.SideWorkScheduler;
+import xyz.mattring.crystan.util.Tuple2;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A Crystan server that handles each request on its own virtual thread.
+ * <p>
+ * Suits I/O bound business logic: blocking calls only park their virtual thread,
+ * so thousands of requests can be in flight without sizing a thread pool.
+ * A semaphore caps the number of requests in flight. When the cap is reached, the {@link OverloadPolicy}
+ * decides whether the NATS dispatcher thread waits (BLOCK), or the request gets an "overloaded" response (REJECT).
+ * <p>
+ * Job IDs, reply subjects, header mode and payload formats are handled like in the other servers.
+ *
+ * @param <A> the type of the request message
+ * @param <B> the type of the response message
+ */
+public class VirtualThreadServer<A, B> implements BusConnector, Subscriber<TrackedMsg<A>>, Publisher<TrackedMsg<B>>, Runnable {
+
+    final String rcvReqSubject;
+    final String sendRespSubject;
+    String queueGroup;
+    int connectionPoolSize = 1;
+    final CodecRegistry<A> reqCodecs;
+    final Function<A, B> businessLogic;
+    final CodecRegistry<B> respCodecs;
+    final int maxConcurrency;
+    final Semaphore permits;
+    OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    final LongAdder numRejected = new LongAdder();
+    final LongAdder numFailures = new LongAdder();
+    final SideWorkScheduler sideWorkScheduler = new SideWorkScheduler();
+    ExecutorService executor;
+    volatile boolean running = false;
+
+    /**
+     * @param maxConcurrency the most requests in flight at once (at least 1)
+     */
+    public VirtualThreadServer(String rcvReqSubject, String sendRespSubject, Function<byte[], A> reqMsgDeserializer, Function<A, B> businessLogic, Function<B, byte[]> respMsgSerializer, int maxConcurrency) {
+        this(rcvReqSubject, sendRespSubject,
+                Codec.of(Codec.FORMAT_DEFAULT, null, PayloadDeserializer.of(reqMsgDeserializer)),
+                businessLogic,
+                Codec.of(Codec.FORMAT_DEFAULT, respMsgSerializer, null),
+                maxConcurrency);
+    }
+
+    /**
+     * @param reqCodec       the request codec
+     * @param respCodec      the response codec, with the same format ID
+     * @param maxConcurrency the most requests in flight at once (at least 1)
+     */
+    public VirtualThreadServer(String rcvReqSubject, String sendRespSubject, Codec<A> reqCodec, Function<A, B> businessLogic, Codec<B> respCodec, int maxConcurrency) {
+        SingleThreadServer.checkSameFormat(reqCodec, respCodec);
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.rcvReqSubject = rcvReqSubject;
+        this.sendRespSubject = sendRespSubject;
+        this.reqCodecs = new CodecRegistry<>(reqCodec);
+        this.businessLogic = businessLogic;
+        this.respCodecs = new CodecRegistry<>(respCodec);
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /**
+     * Adds a request and response codec pair, for one more format.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param reqCodec  the request codec
+     * @param respCodec the response codec, with the same format ID
+     */
+    public void addCodecs(Codec<A> reqCodec, Codec<B> respCodec) {
+        SingleThreadServer.checkSameFormat(reqCodec, respCodec);
+        if (!running) {
+            reqCodecs.register(reqCodec);
+            respCodecs.register(respCodec);
+        }
+    }
+
+    /**
+     * Subscribes to the request subject as a member of a NATS queue group, so that each request
+     * goes to only one of the servers in the group, instead of to all of them.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param queueGroup the queue group name, or null (the default) for a plain subscription
+     */
+    public void setQueueGroup(String queueGroup) {
+        if (!running) {
+            this.queueGroup = queueGroup;
+        }
+    }
+
+    /**
+     * Sets the number of NATS connections. The virtual threads publish their responses
+     * through the connection of the request's client, so one writer does not serialize them all.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param connectionPoolSize at least 1, defaults to 1
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        if (connectionPoolSize < 1) {
+            throw new IllegalArgumentException("connectionPoolSize must be at least 1");
+        }
+        if (!running) {
+            this.connectionPoolSize = connectionPoolSize;
+        }
+    }
+
+    @Override
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    /**
+     * Sets what happens when maxConcurrency requests are in flight. DROP_OLDEST is not supported,
+     * because the requests in flight are already running.
+     * <p>
+     * This method must be called BEFORE the server is started.
+     *
+     * @param overloadPolicy BLOCK (the default) or REJECT
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        if (overloadPolicy == OverloadPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("DROP_OLDEST is not supported by VirtualThreadServer");
+        }
+        if (!running) {
+            this.overloadPolicy = overloadPolicy;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Tuple2<Dispatcher, Subscription>> subParts = null;
+        try {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            running = true;
+            subParts = subscribeToMessages(this::dispatchRequest, this::deserializeRequest, rcvReqSubject, queueGroup, getConnections());
+            sideWorkScheduler.runWhile(() -> running, sideWorkScheduler::doWork);
+        } finally {
+            running = false;
+            if (subParts != null) {
+                Subscriber.unsubscribeAll(subParts);
+            }
+            if (executor != null) {
+                executor.close(); // waits for the requests in flight
+            }
+            closeConnections();
+            PartsCache.evict(this);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        sideWorkScheduler.wake();
+    }
+
+    /**
+     * Returns the scheduler for periodic side work, which runs on the run() thread.
+     * Use it to schedule tasks or to set the idle strategy BEFORE the server is started.
+     *
+     * @return the side work scheduler
+     */
+    public SideWorkScheduler getSideWorkScheduler() {
+        return sideWorkScheduler;
+    }
+
+    TrackedMsg<A> deserializeRequest(Message natsMsg) {
+        return JobIdSerdeHelper.readFormattedTrackedMsg(natsMsg, reqCodecs);
+    }
+
+    /**
+     * Starts a virtual thread for a request, once there is a permit for it.
+     * Runs on the NATS dispatcher thread.
+     *
+     * @param trackedRequestMsg the request
+     */
+    void dispatchRequest(TrackedMsg<A> trackedRequestMsg) {
+        if (trackedRequestMsg.isSignal()) {
+            return; // not a request
+        }
+        if (overloadPolicy == OverloadPolicy.REJECT) {
+            if (!permits.tryAcquire()) {
+                numRejected.increment();
+                publishResponse(trackedRequestMsg.replyOverloaded());
+                return;
+            }
+        } else {
+            permits.acquireUninterruptibly();
+        }
+        try {
+            executor.execute(() -> handleRequest(trackedRequestMsg));
+        } catch (RuntimeException rex) {
+            permits.release(); // shutting down
+            throw rex;
+        }
+    }
+
+    /**
+     * Runs the business logic and publishes the response. Runs on the request's virtual thread.
+     * If the logic throws, the request gets a "failed" response, so the client does not wait for its timeout.
+     * The logic may have had side effects, so unlike an "overloaded" response, it is not a cue to retry.
+     *
+     * @param trackedRequestMsg the request
+     */
+    void handleRequest(TrackedMsg<A> trackedRequestMsg) {
+        try {
+            TrackedMsg<B> trackedResponseMsg;
+            try {
+                final B responseMsg = businessLogic.apply(trackedRequestMsg.getMsg());
+                trackedResponseMsg = responseMsg != null ? trackedRequestMsg.reply(responseMsg) : null;
+            } catch (RuntimeException rex) {
+                numFailures.increment();
+                trackedResponseMsg = trackedRequestMsg.replyFailed();
+            }
+            if (trackedResponseMsg != null) {
+                publishResponse(trackedResponseMsg);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Publishes a response message to its reply subject, or to the NATS sendRespSubject.
+     *
+     * @param trackedResponseMsg the response message to publish
+     */
+    void publishResponse(TrackedMsg<B> trackedResponseMsg) {
+        final String subject = trackedResponseMsg.getReplyTo() != null ? trackedResponseMsg.getReplyTo() : sendRespSubject;
+        JobIdSerdeHelper.publishTrackedMsg(this, trackedResponseMsg, respCodecs.get(trackedResponseMsg.getFormatId()),
+                subject, null, getConnection(trackedResponseMsg.getClientHash()));
+    }
+
+    /**
+     * @return the number of requests rejected by OverloadPolicy.REJECT
+     */
+    public long getNumRejected() {
+        return numRejected.sum();
+    }
+
+    /**
+     * @return the number of requests whose business logic threw an exception
+     */
+    public long getNumFailures() {
+        return numFailures.sum();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getNumInFlight() {
+        return maxConcurrency - permits.availablePermits();
+    }
+}
@@ -0,0 +1,46 @@
+package xyz.mattring.crystan.service;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+
+import java.util.function.Supplier;
+
+/**
+ * The disruptor wait strategies that ServerCore can use, from lowest CPU usage to lowest latency.
+ */
+public enum WaitStrategyType {
+    /**
+     * Lock and condition variable. Lowest CPU usage, highest latency.
+     */
+    BLOCKING(BlockingWaitStrategy::new),
+    /**
+     * Spins, then yields, then sleeps briefly. Low CPU usage when idle, moderate latency.
+     */
+    SLEEPING(SleepingWaitStrategy::new),
+    /**
+     * Spins, then yields. Burns CPU when idle, low latency.
+     */
+    YIELDING(YieldingWaitStrategy::new),
+    /**
+     * Spins forever. Burns one core per consumer thread, lowest latency.
+     */
+    BUSY_SPIN(BusySpinWaitStrategy::new);
+
+    private final Supplier<WaitStrategy> factory;
+
+    WaitStrategyType(Supplier<WaitStrategy> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Creates a new wait strategy instance.
+     *
+     * @return wait strategy
+     */
+    public WaitStrategy create() {
+        return factory.get();
+    }
+}
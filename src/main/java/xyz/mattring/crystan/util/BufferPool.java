@@ -0,0 +1,70 @@
+package xyz.mattring.crystan.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A striped pool of reusable ByteArrayOutput buffers, for serializing messages without allocating scratch buffers.
+ * <p>
+ * Each thread maps to a slot by its thread ID, and also tries the next slot, so threads rarely contend.
+ * When both slots are empty a new buffer is created, and when both are full a released buffer is dropped,
+ * so the pool never blocks. Buffers that grew beyond maxRetainedCapacity are dropped too.
+ */
+public class BufferPool {
+
+    private static final BufferPool SHARED = new BufferPool(4 * Runtime.getRuntime().availableProcessors(), 256, 1 << 20);
+
+    private final AtomicReferenceArray<ByteArrayOutput> slots;
+    private final int mask;
+    private final int initialCapacity;
+    private final int maxRetainedCapacity;
+
+    /**
+     * @param numSlots            the number of slots, rounded up to a power of 2
+     * @param initialCapacity     the initial capacity of new buffers
+     * @param maxRetainedCapacity buffers with a larger capacity are not returned to the pool
+     */
+    public BufferPool(int numSlots, int initialCapacity, int maxRetainedCapacity) {
+        final int size = numSlots <= 1 ? 1 : Integer.highestOneBit(numSlots - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.initialCapacity = initialCapacity;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    /**
+     * @return the pool shared by the high-level clients and servers
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return an empty buffer, which must be released after use, and not used after that
+     */
+    public ByteArrayOutput acquire() {
+        final int slot = slot();
+        ByteArrayOutput buffer = slots.getAndSet(slot, null);
+        if (buffer == null) {
+            buffer = slots.getAndSet((slot + 1) & mask, null);
+        }
+        if (buffer == null) {
+            return new ByteArrayOutput(initialCapacity);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    public void release(ByteArrayOutput buffer) {
+        if (buffer.capacity() > maxRetainedCapacity) {
+            return;
+        }
+        final int slot = slot();
+        if (!slots.compareAndSet(slot, null, buffer)) {
+            slots.compareAndSet((slot + 1) & mask, null, buffer);
+        }
+    }
+
+    private int slot() {
+        return (int) Thread.currentThread().threadId() & mask;
+    }
+}
@@ -0,0 +1,83 @@
+package xyz.mattring.crystan.util;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable, reusable byte buffer, for serializing messages without allocating a new buffer each time.
+ * Unlike ByteArrayOutputStream it is not synchronized, so each instance must only be used by one thread at a time.
+ */
+public class ByteArrayOutput extends OutputStream {
+
+    private byte[] buf;
+    private int size;
+
+    public ByteArrayOutput() {
+        this(256);
+    }
+
+    public ByteArrayOutput(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        buf[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+    void ensureCapacity(int minCapacity) {
+        if (minCapacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(minCapacity, buf.length << 1));
+        }
+    }
+
+    /**
+     * Reserves n bytes at the end of the content, for the caller to fill in directly, e.g. a fixed size header.
+     * The reserved bytes may hold stale content from before the last reset.
+     *
+     * @return the offset of the reserved bytes in array()
+     */
+    public int reserve(int n) {
+        ensureCapacity(size + n);
+        final int offset = size;
+        size += n;
+        return offset;
+    }
+
+    /**
+     * Empties the buffer, keeping its capacity.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * @return the internal buffer, which holds size() bytes of content. Only valid until the next write or reset.
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @return an exact size copy of the content
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+}
@@ -0,0 +1,128 @@
+package xyz.mattring.crystan.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread.
+ * <p>
+ * Producers claim a slot of the ring with a CAS on the producer index, then publish the element into it.
+ * The consumer owns the consumer index, and can drain a batch of elements per call.
+ * A claimed slot whose element is not published yet ends the drain, so the consumer never waits for a producer.
+ *
+ * @param <E> the element type
+ */
+public class MpscArrayQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of queued elements, rounded up to a power of 2
+     */
+    public MpscArrayQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element, unless the queue is full. Safe to call from any thread.
+     *
+     * @param e the element, non-null
+     * @return false if the queue is full
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new IllegalArgumentException("e must be non-null");
+        }
+        final int capacity = mask + 1;
+        long p;
+        do {
+            p = producerIndex.get();
+            if (p - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(p, p + 1));
+        buffer.lazySet((int) p & mask, e);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element. Only the consumer thread may call this.
+     *
+     * @return the oldest element, or null if the queue is empty
+     */
+    public E poll() {
+        final long c = consumerIndex.get();
+        final int offset = (int) c & mask;
+        final E e = buffer.get(offset);
+        if (e == null) {
+            return null; // empty, or the producer has not published yet
+        }
+        buffer.lazySet(offset, null);
+        consumerIndex.lazySet(c + 1);
+        return e;
+    }
+
+    /**
+     * Removes up to limit of the oldest elements, passing them to the consumer in order.
+     * Only the consumer thread may call this.
+     *
+     * @param consumer receives the elements
+     * @param limit    the maximum number of elements to drain
+     * @return the number of elements drained
+     */
+    public int drain(Consumer<? super E> consumer, int limit) {
+        final long c = consumerIndex.get();
+        int count = 0;
+        while (count < limit) {
+            final int offset = (int) (c + count) & mask;
+            final E e = buffer.get(offset);
+            if (e == null) {
+                break;
+            }
+            buffer.lazySet(offset, null);
+            count++;
+            consumerIndex.lazySet(c + count);
+            consumer.accept(e);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of queued elements, including those claimed but not published yet
+     */
+    public int size() {
+        final long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0L, Math.min(size, mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the total number of elements removed so far
+     */
+    public long currentConsumerIndex() {
+        return consumerIndex.get();
+    }
+
+    /**
+     * @return the total number of elements added so far
+     */
+    public long currentProducerIndex() {
+        return producerIndex.get();
+    }
+}
@@ -0,0 +1,116 @@
+package xyz.mattring.crystan.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartsCacheTest {
+
+    static final PartsCache.Key<StringBuilder> BUILDER = new PartsCache.Key<>("builder");
+    static final PartsCache.Key<AutoCloseable> CLOSEABLE = new PartsCache.Key<>("closeable");
+
+    @Test
+    void partsBelongToOwnerIdentity() {
+        final Object owner1 = new Object();
+        final Object owner2 = new Object();
+        final StringBuilder part1 = PartsCache.computeIfAbsent(owner1, BUILDER, owner -> new StringBuilder("1"));
+        assertSame(part1, PartsCache.computeIfAbsent(owner1, BUILDER, owner -> new StringBuilder("other")));
+        assertEquals("2", PartsCache.computeIfAbsent(owner2, BUILDER, owner -> new StringBuilder("2")).toString());
+        PartsCache.evict(owner1);
+        PartsCache.evict(owner2);
+    }
+
+    @Test
+    void mappingFunctionMayLookUpOtherParts() {
+        final Object owner = new Object();
+        final AutoCloseable part = PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> {
+            final StringBuilder nested = PartsCache.computeIfAbsent(o, BUILDER, oo -> new StringBuilder());
+            return () -> nested.setLength(0);
+        });
+        assertNotNull(part);
+        PartsCache.evict(owner);
+    }
+
+    @Test
+    void evictClosesParts() {
+        final Object owner = new Object();
+        final AtomicInteger numClosed = new AtomicInteger();
+        PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> numClosed::incrementAndGet);
+        assertNull(PartsCache.remove(owner, BUILDER));
+        PartsCache.evict(owner);
+        assertEquals(1, numClosed.get());
+        PartsCache.evict(owner);
+        assertEquals(1, numClosed.get());
+        assertNotNull(PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> numClosed::incrementAndGet));
+        PartsCache.evict(owner);
+        assertEquals(2, numClosed.get());
+    }
+
+    @Test
+    void evictClosesEveryPartWhenOneFails() {
+        final Object owner = new Object();
+        final PartsCache.Key<AutoCloseable> other = new PartsCache.Key<>("other");
+        final PartsCache.Key<AutoCloseable> third = new PartsCache.Key<>("third");
+        final AtomicInteger numClosed = new AtomicInteger();
+        PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> () -> {
+            numClosed.incrementAndGet();
+            throw new IllegalStateException("first");
+        });
+        PartsCache.computeIfAbsent(owner, other, o -> () -> {
+            numClosed.incrementAndGet();
+            throw new IllegalStateException("second");
+        });
+        PartsCache.computeIfAbsent(owner, third, o -> numClosed::incrementAndGet);
+
+        final RuntimeException rex = assertThrows(RuntimeException.class, () -> PartsCache.evict(owner));
+        assertEquals(3, numClosed.get());
+        assertEquals(1, rex.getSuppressed().length);
+        assertNull(PartsCache.remove(owner, third));
+    }
+
+    @Test
+    void partsOfCollectedOwnersAreClosed() throws InterruptedException {
+        final AtomicInteger numClosed = new AtomicInteger();
+        Object owner = new Object();
+        PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> numClosed::incrementAndGet);
+        final WeakReference<Object> ownerRef = new WeakReference<>(owner);
+        owner = null;
+        for (int i = 0; i < 50 && ownerRef.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertNull(ownerRef.get(), "the cache must not keep its owners alive");
+
+        // the next new owner copies the table, which drops the collected owner
+        final Object nextOwner = new Object();
+        PartsCache.computeIfAbsent(nextOwner, BUILDER, o -> new StringBuilder());
+        assertEquals(1, numClosed.get());
+        PartsCache.evict(nextOwner);
+    }
+
+    @Test
+    void partsAreNotLostToConcurrentEvict() throws InterruptedException {
+        final Object owner = new Object();
+        final AtomicInteger numCreated = new AtomicInteger();
+        final AtomicInteger numClosed = new AtomicInteger();
+        final Thread evicter = new Thread(() -> {
+            for (int i = 0; i < 10_000; i++) {
+                PartsCache.evict(owner);
+            }
+        });
+        evicter.start();
+        for (int i = 0; i < 10_000; i++) {
+            PartsCache.computeIfAbsent(owner, CLOSEABLE, o -> {
+                numCreated.incrementAndGet();
+                return numClosed::incrementAndGet;
+            });
+        }
+        evicter.join();
+        PartsCache.evict(owner);
+        // every part was either evicted and closed, or closed as the loser of a race
+        assertEquals(numCreated.get(), numClosed.get());
+    }
+}
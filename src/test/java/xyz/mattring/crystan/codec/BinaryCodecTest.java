@@ -0,0 +1,110 @@
+package xyz.mattring.crystan.codec;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.service.Foo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+
+    enum Color {RED, GREEN}
+
+    record Point(int x, long y, double z) {
+    }
+
+    record Shape(String name, Color color, List<Point> points, Integer weight, boolean filled, byte[] tag) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape s && Objects.equals(name, s.name) && color == s.color && points.equals(s.points)
+                    && Objects.equals(weight, s.weight) && filled == s.filled && Arrays.equals(tag, s.tag);
+        }
+    }
+
+    static class Base {
+        long id;
+    }
+
+    @BinaryFields({"id", "label", "next"})
+    static class Child extends Base {
+        String label;
+        transient String ignored;
+        Child next;
+    }
+
+    @Test
+    void roundTripRecord() {
+        final BinaryCodec<Shape> codec = new BinaryCodec<>(Shape.class);
+        final Shape shape = new Shape("tri", Color.GREEN,
+                List.of(new Point(-1, Long.MIN_VALUE, 0.5), new Point(300, 7L, -2.25)), null, true, new byte[]{1, 2});
+        final byte[] bytes = codec.encode(shape);
+        assertEquals(shape, codec.decode(bytes, 0, bytes.length));
+
+        final byte[] framed = new byte[bytes.length + 5];
+        System.arraycopy(bytes, 0, framed, 5, bytes.length);
+        assertEquals(shape, codec.decode(framed, 5, bytes.length));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(bytes, 0, bytes.length - 1));
+    }
+
+    @Test
+    void roundTripPojos() {
+        final BinaryCodec<Child> codec = new BinaryCodec<>(Child.class);
+        final Child child = new Child();
+        child.id = 42L;
+        child.label = "a";
+        child.ignored = "b";
+        child.next = new Child();
+        child.next.id = -3L;
+        final byte[] bytes = codec.encode(child);
+        final Child decoded = codec.decode(bytes, 0, bytes.length);
+        assertEquals(42L, decoded.id);
+        assertEquals("a", decoded.label);
+        assertNull(decoded.ignored);
+        assertEquals(-3L, decoded.next.id);
+        assertNull(decoded.next.label);
+        assertNull(decoded.next.next);
+
+        // no no-arg constructor, so the field constructor is used
+        final BinaryCodec<Foo> fooCodec = new BinaryCodec<>(Foo.class);
+        final Foo foo = new Foo("x", 1.5);
+        final byte[] fooBytes = fooCodec.encode(foo);
+        assertEquals(foo, fooCodec.decode(fooBytes, 0, fooBytes.length));
+    }
+
+    static class Unordered {
+        String name;
+    }
+
+    @BinaryFields({"name", "code"})
+    static class Coded {
+        final String name;
+        final String code;
+
+        Coded(String name, String code) {
+            this.name = name;
+            this.code = code;
+        }
+    }
+
+    @BinaryFields({"label", "next"})
+    static class MissingInherited extends Child {
+    }
+
+    @Test
+    void pojoNeedsAnUnambiguousFieldOrder() {
+        assertThrows(IllegalArgumentException.class, () -> new BinaryCodec<>(Unordered.class));
+        assertThrows(IllegalArgumentException.class, () -> new BinaryCodec<>(MissingInherited.class));
+        // without -parameters, two String parameters could be matched to the fields either way
+        assertThrows(IllegalArgumentException.class, () -> new BinaryCodec<>(Coded.class));
+    }
+
+    @Test
+    void unsupportedFieldType() {
+        record Bad(Object value) {
+        }
+        assertThrows(IllegalArgumentException.class, () -> new BinaryCodec<>(Bad.class));
+    }
+}
@@ -0,0 +1,40 @@
+package xyz.mattring.crystan.json;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonConverterTest {
+
+    final JsonConverter jsonConverter = new JsonConverter() {
+    };
+
+    @Test
+    void toJsonIsCompact() {
+        assertEquals("{\"a\":1}", jsonConverter.toJson(Map.of("a", 1)));
+        assertTrue(jsonConverter.toPrettyJson(Map.of("a", 1)).contains("\n"));
+    }
+
+    @Test
+    void roundTripBytes() {
+        final ByteArrayOutput buffer = new ByteArrayOutput(4);
+        final byte[] json = jsonConverter.toJsonBytes(Map.of("a", "b"), buffer);
+        assertEquals("{\"a\":\"b\"}", new String(json, StandardCharsets.UTF_8));
+        assertArrayEquals(json, jsonConverter.toJsonBytes(Map.of("a", "b")));
+
+        final byte[] framed = new byte[json.length + 3];
+        System.arraycopy(json, 0, framed, 3, json.length);
+        assertEquals(Map.of("a", "b"), jsonConverter.fromJson(framed, 3, json.length, Map.class));
+    }
+
+    @Test
+    void readersAreCachedPerClass() {
+        assertSame(jsonConverter.getObjectReader(Map.class), jsonConverter.getObjectReader(Map.class));
+        // same simple name, different classes
+        assertNotSame(jsonConverter.getObjectReader(java.util.List.class), jsonConverter.getObjectReader(java.awt.List.class));
+    }
+}
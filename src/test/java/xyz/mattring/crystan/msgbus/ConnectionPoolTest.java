@@ -0,0 +1,34 @@
+package xyz.mattring.crystan.msgbus;
+
+import io.nats.client.Connection;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+
+    @Test
+    void stripesAcrossConnections() {
+        final List<RecordingConnection> recorders = List.of(new RecordingConnection(), new RecordingConnection(), new RecordingConnection());
+        final List<Connection> conns = recorders.stream().map(recorder -> recorder.connection).toList();
+        final ConnectionPool pool = new ConnectionPool(conns);
+        assertEquals(3, pool.size());
+        assertSame(conns.get(1), pool.get(4));
+        assertSame(conns.get(2), pool.get(-1));
+        assertSame(pool.forCurrentThread(), pool.forCurrentThread());
+
+        pool.flushBuffers();
+        pool.close();
+        for (RecordingConnection recorder : recorders) {
+            assertEquals(List.of("flushBuffer", "close"), recorder.calls);
+        }
+    }
+
+    @Test
+    void rejectsEmptyPool() {
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionPool(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> ConnectionPool.connect(null, 0));
+    }
+}
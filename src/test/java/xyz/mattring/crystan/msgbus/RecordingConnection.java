@@ -0,0 +1,102 @@
+package xyz.mattring.crystan.msgbus;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A fake NATS connection for unit tests, which records what the code under test does with it
+ * instead of talking to a server. Each instance is a separate connection, with its own dispatcher.
+ */
+public class RecordingConnection {
+
+    /**
+     * The names of the Connection methods called, in order.
+     */
+    public final List<String> calls = new CopyOnWriteArrayList<>();
+    /**
+     * The data of each published message, in order.
+     */
+    public final List<byte[]> published = new CopyOnWriteArrayList<>();
+    /**
+     * The arguments of each dispatcher subscribe call, without the handler.
+     */
+    public final List<List<Object>> subscribeCalls = new CopyOnWriteArrayList<>();
+    /**
+     * False to only keep the last published data, so that recording allocates nothing, e.g. for allocation tests.
+     */
+    final boolean recordAll;
+    volatile byte[] lastPublished;
+
+    public final Dispatcher dispatcher = proxy(Dispatcher.class, (proxy, method, args) -> {
+        if (method.getName().equals("subscribe")) {
+            subscribeCalls.add(Arrays.asList(args).subList(0, args.length - 1));
+        }
+        return null;
+    });
+
+    public final Connection connection;
+
+    public RecordingConnection() {
+        this(true);
+    }
+
+    public RecordingConnection(boolean recordAll) {
+        this.recordAll = recordAll;
+        this.connection = proxy(Connection.class, (proxy, method, args) -> {
+            if (recordAll) {
+                calls.add(method.getName());
+            }
+            switch (method.getName()) {
+                case "publish" -> {
+                    lastPublished = (byte[]) args[args.length - 1];
+                    if (recordAll) {
+                        published.add(lastPublished);
+                    }
+                }
+                case "createDispatcher" -> {
+                    return dispatcher;
+                }
+                default -> {
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the number of calls to the Connection method
+     */
+    public int count(String methodName) {
+        return (int) calls.stream().filter(methodName::equals).count();
+    }
+
+    /**
+     * @return the data of the last published message
+     */
+    public byte[] lastPublished() {
+        return lastPublished;
+    }
+
+    interface Handler {
+        Object invoke(Object proxy, Method method, Object[] args);
+    }
+
+    /**
+     * Creates a proxy that answers the Object methods by identity, and passes the rest to the handler.
+     */
+    static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+                switch (method.getName()) {
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    default -> handler.invoke(proxy, method, args);
+                }));
+    }
+}
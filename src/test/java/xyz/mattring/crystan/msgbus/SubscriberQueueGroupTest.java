@@ -0,0 +1,24 @@
+package xyz.mattring.crystan.msgbus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SubscriberQueueGroupTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+
+    final Subscriber<byte[]> subscriber = new Subscriber<>() {
+    };
+
+    @Test
+    void subscribesWithQueueGroup() {
+        subscriber.subscribe(bytes -> {
+        }, bytes -> bytes, "subject", "workers", conn.connection);
+        subscriber.subscribe(bytes -> {
+        }, bytes -> bytes, "subject", conn.connection);
+        assertEquals(List.of(List.of("subject", "workers"), List.of("subject")), conn.subscribeCalls);
+    }
+}
@@ -0,0 +1,46 @@
+package xyz.mattring.crystan.sched;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedTimingWheelTest {
+
+    @Test
+    void expiresOnlyDueTimeouts() {
+        final HashedTimingWheel<String> wheel = new HashedTimingWheel<>(Duration.ofMillis(10), 8);
+        final long start = System.nanoTime();
+        wheel.schedule("soon", Duration.ofMillis(20));
+        wheel.schedule("later", Duration.ofMillis(500)); // several rounds of the 80ms wheel
+        final List<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.expire(start, expired::add));
+        wheel.expire(start + TimeUnit.MILLISECONDS.toNanos(100), expired::add);
+        assertEquals(List.of("soon"), expired);
+        wheel.expire(start + TimeUnit.MILLISECONDS.toNanos(400), expired::add);
+        assertEquals(List.of("soon"), expired);
+        wheel.expire(start + TimeUnit.MILLISECONDS.toNanos(600), expired::add);
+        assertEquals(List.of("soon", "later"), expired);
+    }
+
+    @Test
+    void cancelledTimeoutsDoNotExpire() {
+        final HashedTimingWheel<Long> wheel = new HashedTimingWheel<>(Duration.ofMillis(1), 64);
+        final long start = System.nanoTime();
+        final List<Long> expired = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) {
+            HashedTimingWheel.Timeout<Long> timeout = wheel.schedule(i, Duration.ofMillis(i % 50));
+            if (i % 2 == 0) {
+                timeout.cancel();
+            }
+        }
+        final int numExpired = wheel.expire(start + TimeUnit.MILLISECONDS.toNanos(100), expired::add);
+        assertEquals(500, numExpired);
+        assertTrue(expired.stream().allMatch(i -> i % 2 == 1));
+    }
+}
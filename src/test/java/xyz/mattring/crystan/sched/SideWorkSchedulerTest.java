@@ -0,0 +1,66 @@
+package xyz.mattring.crystan.sched;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SideWorkSchedulerTest {
+
+    @Test
+    void doWorkOnlyRunsDueTasks() throws InterruptedException {
+        final SideWorkScheduler scheduler = new SideWorkScheduler();
+        final AtomicInteger fastCount = new AtomicInteger();
+        final AtomicInteger slowCount = new AtomicInteger();
+        scheduler.schedulePeriodic(fastCount::incrementAndGet, Duration.ofMillis(50));
+        scheduler.schedulePeriodic(slowCount::incrementAndGet, Duration.ofHours(1));
+        assertEquals(0, scheduler.doWork());
+        Thread.sleep(80L);
+        assertEquals(1, scheduler.doWork());
+        assertEquals(1, fastCount.get());
+        assertEquals(0, slowCount.get());
+    }
+
+    @Test
+    void runWhileRunsPeriodicTasks() throws InterruptedException {
+        final SideWorkScheduler scheduler = new SideWorkScheduler();
+        final CountDownLatch taskRuns = new CountDownLatch(3);
+        scheduler.schedulePeriodic(taskRuns::countDown, Duration.ofMillis(5));
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread runner = new Thread(() -> scheduler.runWhile(running::get, scheduler::doWork));
+        runner.start();
+        final boolean ran = taskRuns.await(1, TimeUnit.SECONDS);
+        running.set(false);
+        scheduler.wake();
+        runner.join(1000L);
+        assertTrue(ran, "periodic task did not run");
+        assertFalse(runner.isAlive(), "runner did not stop");
+    }
+
+    @Test
+    void wakeStopsParkedRunnerPromptly() throws InterruptedException {
+        final SideWorkScheduler scheduler = new SideWorkScheduler();
+        // park for a long time when idle, so only wake() can stop the loop promptly
+        scheduler.setIdleStrategy(new BackoffIdleStrategy(0, 0, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10)));
+        final AtomicInteger passes = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread runner = new Thread(() -> scheduler.runWhile(running::get, () -> {
+            passes.incrementAndGet();
+            return scheduler.doWork();
+        }));
+        runner.start();
+        Thread.sleep(100L);
+        running.set(false);
+        scheduler.wake();
+        runner.join(1000L);
+        assertFalse(runner.isAlive(), "runner did not stop promptly");
+        assertTrue(passes.get() < 10, "runner did not idle, passes = " + passes.get());
+    }
+}
@@ -0,0 +1,120 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientCoreConcurrencyLimitTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+    final List<byte[]> published = conn.published;
+
+    ClientCore<String, String> createClient(OverloadPolicy limitPolicy) {
+        final ClientCore<String, String> clientCore = ServiceFixtures.clientCore(conn.connection);
+        clientCore.setConcurrencyLimiter(new ConcurrencyLimiter(1, 1, 1), limitPolicy);
+        return clientCore;
+    }
+
+    void respond(ClientCore<String, String> clientCore, int requestIndex) {
+        final long jobSeq = JobIdSerdeHelper.readJobSeq(published.get(requestIndex));
+        clientCore.processTrackedResponse(new TrackedMsg<>(clientCore.clientHash, jobSeq, "resp" + requestIndex, null));
+    }
+
+    @Test
+    void queuesPastTheLimit() throws Exception {
+        final ClientCore<String, String> clientCore = createClient(OverloadPolicy.BLOCK);
+        final List<String> responses = new ArrayList<>();
+        clientCore.sendRequest("a", responses::add);
+        clientCore.sendRequest("b", responses::add);
+        assertEquals(1, published.size());
+        assertEquals(1, clientCore.getNumQueued());
+
+        respond(clientCore, 0);
+        assertEquals(2, published.size());
+        assertEquals(0, clientCore.getNumQueued());
+        respond(clientCore, 1);
+        assertEquals(List.of("resp0", "resp1"), responses);
+        assertEquals(0, clientCore.concurrencyLimiter.getInFlight());
+        assertEquals(0, clientCore.getNumHandlers());
+    }
+
+    @Test
+    void queuedRequestThatTimesOutGivesBackItsPermit() {
+        final ClientCore<String, String> clientCore = createClient(OverloadPolicy.BLOCK);
+        clientCore.sendRequest("a", resp -> {
+        });
+        final CompletableFuture<String> timedOut = clientCore.sendRequestAsync("b", java.time.Duration.ofSeconds(5));
+        final ClientCore.PendingRequest<String, String> queued = clientCore.limitedRequests.peek();
+        assertNotNull(queued);
+        assertEquals(ClientCore.PendingRequest.QUEUED, queued.state);
+
+        // the timeout wins the race with the permit: it must neither send the request nor leak the permit
+        clientCore.expireRequest(queued);
+        assertTrue(timedOut.isCompletedExceptionally());
+        assertEquals(1, clientCore.concurrencyLimiter.getInFlight());
+        respond(clientCore, 0);
+        assertEquals(1, published.size());
+        assertEquals(0, clientCore.getNumQueued());
+        assertEquals(0, clientCore.concurrencyLimiter.getInFlight());
+        assertEquals(0, clientCore.getNumHandlers());
+    }
+
+    @Test
+    void requestWithoutTimeoutCannotKeepItsPermit() {
+        final ClientCore<String, String> clientCore = createClient(OverloadPolicy.BLOCK);
+        final List<String> responses = new ArrayList<>();
+        clientCore.sendRequest("a", responses::add);
+        clientCore.sendRequest("b", responses::add);
+        final ClientCore.PendingRequest<String, String> sent = clientCore.registeredRespHandlers.get(JobIdSerdeHelper.readJobSeq(published.get(0)));
+        assertNotNull(sent.timeout, "a limited request needs a timeout");
+
+        // the response is lost, so only the timeout gives the permit back, and sends the queued request
+        clientCore.expireRequest(sent);
+        assertEquals(1, clientCore.getNumTimedOut());
+        assertEquals(2, published.size());
+        respond(clientCore, 1);
+        assertEquals(List.of("resp1"), responses);
+        assertEquals(0, clientCore.concurrencyLimiter.getInFlight());
+        assertThrows(IllegalArgumentException.class, () -> clientCore.setConcurrencyLimiter(null, OverloadPolicy.BLOCK, java.time.Duration.ZERO));
+    }
+
+    @Test
+    void rejectsPastTheLimit() {
+        final ClientCore<String, String> clientCore = createClient(OverloadPolicy.REJECT);
+        clientCore.sendRequest("a", resp -> {
+        });
+        final CompletableFuture<String> rejected = clientCore.sendRequestAsync("b", java.time.Duration.ofSeconds(5));
+        assertEquals(1, published.size());
+        assertEquals(1, clientCore.getNumLimited());
+        final ExecutionException exex = assertThrows(ExecutionException.class, rejected::get);
+        assertInstanceOf(ServerOverloadedException.class, exex.getCause());
+        assertEquals(1, clientCore.getNumHandlers());
+    }
+
+    @Test
+    void failedResponseIsNotCountedAsDropped() {
+        final ClientCore<String, String> clientCore = ServiceFixtures.clientCore(conn.connection);
+        clientCore.setConcurrencyLimiter(new ConcurrencyLimiter(8, 1, 16), OverloadPolicy.BLOCK);
+        final CompletableFuture<String> failed = clientCore.sendRequestAsync("a", java.time.Duration.ofSeconds(5));
+        clientCore.processTrackedResponse(TrackedMsg.failed(clientCore.clientHash, JobIdSerdeHelper.readJobSeq(published.get(0)), null));
+
+        final ExecutionException exex = assertThrows(ExecutionException.class, failed::get);
+        assertInstanceOf(ServerFailureException.class, exex.getCause());
+        assertEquals(1, clientCore.getNumFailed());
+        assertEquals(0, clientCore.getNumOverloaded());
+        assertEquals(8, clientCore.concurrencyLimiter.getLimit());
+        assertEquals(0, clientCore.concurrencyLimiter.getInFlight());
+    }
+
+    @Test
+    void rejectsDropOldest() {
+        final ClientCore<String, String> clientCore = createClient(OverloadPolicy.BLOCK);
+        assertThrows(IllegalArgumentException.class, () -> clientCore.setConcurrencyLimiter(null, OverloadPolicy.DROP_OLDEST));
+    }
+}
@@ -0,0 +1,60 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that responses for other clients are discarded without decoding or allocating anything.
+ */
+class ClientCoreResponseFilterTest {
+
+    static final int WARMUP = 50_000;
+    static final int MEASURED = 10_000;
+
+    final ClientCore<String, String> clientCore = ServiceFixtures.clientCore(new RecordingConnection().connection);
+
+    byte[] response(int clientHash, long jobSeq) {
+        return JobIdSerdeHelper.prependPayloadWithBinaryJobId(clientHash, jobSeq, (byte) 0, "resp".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void filtersForeignResponses() {
+        clientCore.registeredRespHandlers.put(new ClientCore.PendingRequest<>(5L, "req", resp -> {
+        }, null));
+        assertTrue(clientCore.isOwnResponse(response(clientCore.clientHash, 5L)));
+        assertFalse(clientCore.isOwnResponse(response(clientCore.clientHash, 6L)));
+        assertFalse(clientCore.isOwnResponse(response(clientCore.clientHash + 1, 5L)));
+        assertFalse(clientCore.isOwnResponse(JobIdSerdeHelper.prependPayloadWithJobId("some-legacy-job-id", "resp".getBytes(StandardCharsets.UTF_8))));
+
+        assertTrue(clientCore.isOwnResponse(JobIdSerdeHelper.formatBinaryJobId(clientCore.clientHash, 5L)));
+        assertFalse(clientCore.isOwnResponse(JobIdSerdeHelper.formatBinaryJobId(clientCore.clientHash + 1, 5L)));
+        assertFalse(clientCore.isOwnResponse((String) null));
+    }
+
+    @Test
+    void foreignResponsesAllocateNothing() {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        final byte[] foreign = response(clientCore.clientHash + 1, 5L);
+        final byte[] unknownJob = response(clientCore.clientHash, 5L);
+
+        for (int i = 0; i < WARMUP; i++) {
+            assertNull(clientCore.deserializeTrackedResponse(foreign));
+            assertNull(clientCore.deserializeTrackedResponse(unknownJob));
+        }
+        final long threadId = Thread.currentThread().threadId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED; i++) {
+            clientCore.deserializeTrackedResponse(foreign);
+            clientCore.deserializeTrackedResponse(unknownJob);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated < MEASURED, "allocated " + allocated + " bytes for " + 2 * MEASURED + " foreign responses");
+    }
+}
@@ -1,13 +1,28 @@
 package xyz.mattring.crystan.service;
 
+import io.nats.client.Dispatcher;
+import io.nats.client.Subscription;
 import org.junit.jupiter.api.Test;
 import xyz.mattring.crystan.json.JsonConverter;
+import xyz.mattring.crystan.msgbus.BusConnector;
+import xyz.mattring.crystan.msgbus.Subscriber;
 import xyz.mattring.crystan.util.BytesConverter;
+import xyz.mattring.crystan.util.Tuple2;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ClientCoreServerCoreIT extends NatsTestBase {
@@ -74,4 +89,157 @@ public class ClientCoreServerCoreIT extends NatsTestBase {
         assertTrue(recvdMsg, "recvdMsgLatch.await() timed out");
     }
 
+    @Test
+    public void testSendRequestAsync() throws Exception {
+        final String testSubjectA = "it.test.async.subjectA";
+        final String testSubjectB = "it.test.async.subjectB";
+        final Foo testFoo = new Foo("foo", 1.0d);
+        final Bar testBar = new Bar(testFoo);
+        final JsonConverter jsonConverter = new JsonConverter() {
+        };
+        ServerCore<Foo, Bar> server = new ServerCore<>(
+                testSubjectA,
+                testSubjectB,
+                msgBytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(msgBytes), Foo.class),
+                Bar::new,
+                barMsg -> BytesConverter.utf8ToBytes(jsonConverter.toJson(barMsg)));
+        ClientCore<Foo, Bar> clientCore = new ClientCore<>(
+                testSubjectA,
+                testSubjectB,
+                foo -> BytesConverter.utf8ToBytes(jsonConverter.toJson(foo)),
+                bytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(bytes), Bar.class));
+        Thread clientCoreThread = new Thread(clientCore);
+        clientCoreThread.start();
+
+        // no server yet, so the request must time out
+        CompletableFuture<Bar> timedOut = clientCore.sendRequestAsync(testFoo, Duration.ofMillis(200));
+        ExecutionException exex = assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, exex.getCause());
+        assertEquals(1, clientCore.getNumTimedOut());
+        assertEquals(0, clientCore.getNumHandlers(), "clientCore.getNumHandlers() != 0");
+
+        Thread serverThread = new Thread(server);
+        serverThread.start();
+        Thread.sleep(500L);
+        Bar bar = clientCore.sendRequestAsync(testFoo, Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+        clientCore.stop();
+        server.stop();
+        assertEquals(testBar, bar);
+        assertEquals(0, clientCore.getNumHandlers(), "clientCore.getNumHandlers() != 0");
+    }
+
+    @Test
+    public void testPrivateReplyInboxes() throws Exception {
+        final String testSubjectA = "it.test.inbox.subjectA";
+        final String testSubjectB = "it.test.inbox.subjectB";
+        final JsonConverter jsonConverter = new JsonConverter() {
+        };
+        ServerCore<Foo, Bar> server = new ServerCore<>(
+                testSubjectA,
+                testSubjectB,
+                msgBytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(msgBytes), Foo.class),
+                Bar::new,
+                barMsg -> BytesConverter.utf8ToBytes(jsonConverter.toJson(barMsg)));
+        Thread serverThread = new Thread(server);
+        serverThread.start();
+
+        final AtomicInteger numSharedSubjectMsgs = new AtomicInteger();
+        final Subscriber<byte[]> sharedSubjectSpy = new Subscriber<>() {
+        };
+        final BusConnector spyConnector = new BusConnector() {
+        };
+        final Tuple2<Dispatcher, Subscription> spyParts = sharedSubjectSpy.subscribe(
+                bytes -> numSharedSubjectMsgs.incrementAndGet(), bytes -> bytes, testSubjectB, spyConnector.getConnection());
+
+        final List<ClientCore<Foo, Bar>> clients = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ClientCore<Foo, Bar> clientCore = new ClientCore<>(
+                    testSubjectA,
+                    testSubjectB,
+                    foo -> BytesConverter.utf8ToBytes(jsonConverter.toJson(foo)),
+                    bytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(bytes), Bar.class));
+            clientCore.setPrivateReplyInbox(true);
+            new Thread(clientCore).start();
+            clients.add(clientCore);
+        }
+        Thread.sleep(500L);
+        for (int i = 0; i < clients.size(); i++) {
+            final Foo foo = new Foo("foo" + i, (double) i);
+            final Bar bar = clients.get(i).sendRequestAsync(foo, Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+            assertEquals(new Bar(foo), bar);
+        }
+        clients.forEach(ClientCore::stop);
+        server.stop();
+        spyParts._1().unsubscribe(spyParts._2());
+        assertEquals(0, numSharedSubjectMsgs.get(), "responses were published to the shared subject");
+    }
+
+    @Test
+    public void testJobIdInHeaders() throws Exception {
+        final String testSubjectA = "it.test.headers.subjectA";
+        final String testSubjectB = "it.test.headers.subjectB";
+        final Foo testFoo = new Foo("foo", 1.0d);
+        final JsonConverter jsonConverter = new JsonConverter() {
+        };
+        ServerCore<Foo, Bar> server = new ServerCore<>(
+                testSubjectA,
+                testSubjectB,
+                msgBytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(msgBytes), Foo.class),
+                Bar::new,
+                barMsg -> BytesConverter.utf8ToBytes(jsonConverter.toJson(barMsg)));
+        ClientCore<Foo, Bar> clientCore = new ClientCore<>(
+                testSubjectA,
+                testSubjectB,
+                foo -> BytesConverter.utf8ToBytes(jsonConverter.toJson(foo)),
+                bytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(bytes), Bar.class));
+        clientCore.setJobIdInHeaders(true);
+        new Thread(server).start();
+        new Thread(clientCore).start();
+        Thread.sleep(500L);
+        Bar bar = clientCore.sendRequestAsync(testFoo, Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS);
+        clientCore.stop();
+        server.stop();
+        assertEquals(new Bar(testFoo), bar);
+    }
+
+    @Test
+    public void testQueueGroup() throws Exception {
+        final String testSubjectA = "it.test.group.subjectA";
+        final String testSubjectB = "it.test.group.subjectB";
+        final int numRequests = 20;
+        final JsonConverter jsonConverter = new JsonConverter() {
+        };
+        final AtomicInteger numHandled = new AtomicInteger();
+        final List<ServerCore<Foo, Bar>> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ServerCore<Foo, Bar> server = new ServerCore.Builder<Foo, Bar>()
+                    .rcvReqSubject(testSubjectA)
+                    .sendRespSubject(testSubjectB)
+                    .queueGroup("it.test.group")
+                    .reqMsgDeserializer(msgBytes -> jsonConverter.fromJson(msgBytes, Foo.class))
+                    .businessLogic(foo -> {
+                        numHandled.incrementAndGet();
+                        return new Bar(foo);
+                    })
+                    .respMsgSerializer(jsonConverter::toJsonBytes)
+                    .build();
+            new Thread(server).start();
+            servers.add(server);
+        }
+        ClientCore<Foo, Bar> clientCore = new ClientCore<>(
+                testSubjectA,
+                testSubjectB,
+                foo -> BytesConverter.utf8ToBytes(jsonConverter.toJson(foo)),
+                bytes -> jsonConverter.fromJson(BytesConverter.bytesToUtf8(bytes), Bar.class));
+        new Thread(clientCore).start();
+        Thread.sleep(500L);
+        for (int i = 0; i < numRequests; i++) {
+            final Foo foo = new Foo("foo" + i, (double) i);
+            assertEquals(new Bar(foo), clientCore.sendRequestAsync(foo, Duration.ofSeconds(5)).get(10, TimeUnit.SECONDS));
+        }
+        clientCore.stop();
+        servers.forEach(ServerCore::stop);
+        assertEquals(numRequests, numHandled.get(), "each request must be handled by only one server");
+    }
+
 }
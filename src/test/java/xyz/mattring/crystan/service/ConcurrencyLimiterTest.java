@@ -0,0 +1,106 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimiterTest {
+
+    static final long FAST_NANOS = 1_000_000L;
+    /**
+     * A short spike backs off once, not once per slow sample.
+     */
+    static final double LATENCY_BACKOFF_FLOOR = ConcurrencyLimiter.LATENCY_BACKOFF * 0.95d;
+
+    @Test
+    void limitsInFlight() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        limiter.release();
+        assertTrue(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    void growsWhileFastAndUsed() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 100);
+        for (int i = 0; i < 200; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            limiter.onResponse(FAST_NANOS);
+        }
+        assertTrue(limiter.getLimit() > 4, "limit " + limiter.getLimit());
+    }
+
+    /**
+     * Sends count requests with the given latency, keeping the limit in use.
+     */
+    static void respond(ConcurrencyLimiter limiter, int count, long rttNanos) {
+        for (int i = 0; i < count; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            limiter.onResponse(rttNanos);
+        }
+    }
+
+    @Test
+    void shrinksOncePerWindowOnSlowResponses() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(40, 2, 100);
+        assertTrue(limiter.tryAcquire());
+        limiter.onResponse(FAST_NANOS);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onResponse(10 * FAST_NANOS);
+        }
+        assertEquals(36, limiter.getLimit());
+        // the next backoff waits for a window of about limit samples
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onResponse(10 * FAST_NANOS);
+        }
+        assertEquals(36, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onResponse(10 * FAST_NANOS);
+        }
+        assertEquals(32, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void halvesOncePerWindowOnDrops() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(40, 2, 100);
+        assertTrue(limiter.tryAcquire());
+        limiter.onDropped();
+        assertEquals(20, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onDropped();
+        }
+        assertEquals(20, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onDropped();
+        }
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void recoversAfterLatencySpike() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 100);
+        respond(limiter, 200, FAST_NANOS);
+        final int beforeSpike = limiter.getLimit();
+        assertTrue(beforeSpike > 20, "limit " + beforeSpike);
+
+        respond(limiter, 20, 10 * FAST_NANOS);
+        final int afterSpike = limiter.getLimit();
+        assertTrue(afterSpike < beforeSpike, "limit " + afterSpike);
+        assertTrue(afterSpike >= beforeSpike * LATENCY_BACKOFF_FLOOR, "limit collapsed to " + afterSpike);
+
+        respond(limiter, 100, FAST_NANOS);
+        assertTrue(limiter.getLimit() >= beforeSpike, "limit " + limiter.getLimit());
+    }
+}
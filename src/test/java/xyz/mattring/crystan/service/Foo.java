@@ -2,9 +2,11 @@ package xyz.mattring.crystan.service;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import xyz.mattring.crystan.codec.BinaryFields;
 
 import java.util.Objects;
 
+@BinaryFields({"val1", "val2"})
 public class Foo {
     final String val1;
     final Double val2;
@@ -0,0 +1,41 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightTableTest {
+
+    record Entry(long seq) {
+    }
+
+    @Test
+    void putGetRemove() {
+        final InFlightTable<Entry> table = new InFlightTable<>(4, Entry::seq);
+        final Entry e1 = new Entry(1L);
+        table.put(e1);
+        assertSame(e1, table.get(1L));
+        assertNull(table.get(5L)); // same slot, other sequence
+        assertTrue(table.containsKey(1L));
+        assertEquals(1, table.size());
+        assertSame(e1, table.remove(1L));
+        assertNull(table.remove(1L));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    void overflowsWhenSlotIsTaken() {
+        final InFlightTable<Entry> table = new InFlightTable<>(4, Entry::seq);
+        final Entry old = new Entry(2L);
+        final Entry wrapped = new Entry(6L);
+        table.put(old);
+        table.put(wrapped);
+        assertEquals(1, table.overflowSize());
+        assertSame(wrapped, table.get(6L));
+        assertSame(old, table.get(2L));
+        assertSame(wrapped, table.remove(6L));
+        assertSame(old, table.remove(2L));
+        assertEquals(0, table.size());
+        assertEquals(0, table.overflowSize());
+    }
+}
@@ -0,0 +1,58 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobIdGeneratorTest {
+
+    @Test
+    void jobIdsAreUniqueAcrossThreads() throws InterruptedException {
+        final JobIdGenerator generator = new JobIdGenerator("JobIdGeneratorTest");
+        final Set<String> jobIds = ConcurrentHashMap.newKeySet();
+        final Set<Long> jobSeqs = ConcurrentHashMap.newKeySet();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    jobIds.add(generator.nextJobId());
+                    jobSeqs.add(generator.nextJobSeq());
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(40_000, jobIds.size());
+        assertEquals(40_000, jobSeqs.size());
+    }
+
+    @Test
+    void writeNextJobIdMatchesNextJobId() {
+        final JobIdGenerator generator = new JobIdGenerator("JobIdGeneratorTest");
+        final String first = generator.nextJobId();
+        final byte[] buffer = new byte[64];
+        final int length = generator.writeNextJobId(buffer, 3);
+        final String second = new String(buffer, 3, length, StandardCharsets.US_ASCII);
+        final String firstCount = first.substring(first.lastIndexOf('-') + 1);
+        assertEquals(first.substring(0, first.lastIndexOf('-')), second.substring(0, second.lastIndexOf('-')));
+        assertEquals(Long.parseLong(firstCount) + 1, Long.parseLong(second.substring(second.lastIndexOf('-') + 1)));
+    }
+
+    @Test
+    void writeNextBinaryJobId() {
+        final JobIdGenerator generator = new JobIdGenerator("JobIdGeneratorTest");
+        final byte[] buffer = new byte[JobIdSerdeHelper.BINARY_HEADER_SIZE];
+        final long jobSeq = generator.writeNextBinaryJobId(buffer, 0, (byte) 0);
+        assertTrue(JobIdSerdeHelper.isBinaryJobId(buffer));
+        assertEquals(generator.getClientHash(), JobIdSerdeHelper.readClientHash(buffer));
+        assertEquals(jobSeq, JobIdSerdeHelper.readJobSeq(buffer));
+        assertEquals(jobSeq + 1, generator.nextJobSeq());
+    }
+}
@@ -1,5 +1,9 @@
 package xyz.mattring.crystan.service;
 
+import io.nats.client.Message;
+import io.nats.client.impl.NatsMessage;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.util.ByteArrayOutput;
 import xyz.mattring.crystan.util.Tuple2;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -36,4 +40,165 @@ class JobIdSerdeHelperTest {
         assertEquals(jobId, JobIdSerdeHelper.findJobId(payloadWithJobId));
     }
 
-}
\ No newline at end of file
+    @org.junit.jupiter.api.Test
+    void overloadedMsg() {
+        String jobId = "JobId-2";
+        byte[] overloadedMsg = JobIdSerdeHelper.createOverloadedMsg(jobId);
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(overloadedMsg));
+        assertEquals(jobId, JobIdSerdeHelper.findJobId(overloadedMsg));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(JobIdSerdeHelper.prependPayloadWithJobId(jobId, "x".getBytes())));
+        assertTrue(JobIdSerdeHelper.readTrackedMsg(overloadedMsg, String::new, null).isOverloaded());
+    }
+
+    @org.junit.jupiter.api.Test
+    void legacyEmptyPayloadIsNotOverloaded() {
+        String jobId = "JobId-3";
+        byte[] emptyRequest = JobIdSerdeHelper.prependPayloadWithJobId(jobId, new byte[0]);
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(emptyRequest));
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readTrackedMsg(emptyRequest, String::new, null);
+        assertFalse(extracted.isOverloaded());
+        assertEquals("", extracted.getMsg());
+
+        // the pooled write path marks overloaded replies the same way
+        ByteArrayOutput out = new ByteArrayOutput(64);
+        JobIdSerdeHelper.writeTrackedMsg(extracted.replyOverloaded(), Codec.<String>of(Codec.FORMAT_DEFAULT, String::getBytes, null), out);
+        byte[] overloadedMsg = out.toByteArray();
+        assertArrayEquals(JobIdSerdeHelper.createOverloadedMsg(jobId), overloadedMsg);
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(overloadedMsg));
+        assertEquals(jobId, JobIdSerdeHelper.findJobId(overloadedMsg));
+    }
+
+    @org.junit.jupiter.api.Test
+    void failedMsgIsNotOverloaded() {
+        String jobId = "JobId-5";
+        byte[] legacyFailed = JobIdSerdeHelper.createFailedMsg(jobId);
+        assertTrue(JobIdSerdeHelper.isFailedMsg(legacyFailed));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(legacyFailed));
+        assertFalse(JobIdSerdeHelper.isFailedMsg(JobIdSerdeHelper.createOverloadedMsg(jobId)));
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readTrackedMsg(legacyFailed, String::new, null);
+        assertTrue(extracted.isFailed());
+        assertFalse(extracted.isOverloaded());
+        assertEquals(jobId, extracted.getJobId());
+
+        TrackedMsg<String> request = new TrackedMsg<>(7, 8L, "Hello", null);
+        ByteArrayOutput out = new ByteArrayOutput(64);
+        JobIdSerdeHelper.writeTrackedMsg(request.replyFailed(), Codec.<String>of(Codec.FORMAT_DEFAULT, String::getBytes, null), out);
+        byte[] binaryFailed = out.toByteArray();
+        assertArrayEquals(JobIdSerdeHelper.createFailedMsg(7, 8L), binaryFailed);
+        assertTrue(JobIdSerdeHelper.isFailedMsg(binaryFailed));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(binaryFailed));
+        assertTrue(JobIdSerdeHelper.readTrackedMsg(binaryFailed, String::new, null).isFailed());
+
+        TrackedMsg<String> failed = request.withJobIdInHeaders().replyFailed();
+        Message failedMsg = NatsMessage.builder()
+                .subject("reply.subject")
+                .headers(JobIdSerdeHelper.createJobIdHeaders(failed))
+                .data(JobIdSerdeHelper.writePayload(failed, String::getBytes))
+                .build();
+        assertEquals(JobIdSerdeHelper.STATUS_FAILED, failedMsg.getHeaders().getFirst(JobIdSerdeHelper.STATUS_HEADER));
+        assertTrue(JobIdSerdeHelper.readTrackedMsg(failedMsg, String::new).isFailed());
+    }
+
+    @org.junit.jupiter.api.Test
+    void roundTripTestBinaryJobId() {
+        int clientHash = JobIdGenerator.hashClientId("ClientCore-1a2b3c");
+        long jobSeq = 1234567890123L;
+        String testPayload = "Hello, world!";
+        TrackedMsg<String> trackedMsg = new TrackedMsg<>(clientHash, jobSeq, testPayload, null);
+        byte[] payloadWithJobId = JobIdSerdeHelper.writeTrackedMsg(trackedMsg, String::getBytes);
+        assertEquals(JobIdSerdeHelper.BINARY_HEADER_SIZE + testPayload.length(), payloadWithJobId.length);
+        assertTrue(JobIdSerdeHelper.isBinaryJobId(payloadWithJobId));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(payloadWithJobId));
+        assertEquals(clientHash, JobIdSerdeHelper.readClientHash(payloadWithJobId));
+        assertEquals(jobSeq, JobIdSerdeHelper.readJobSeq(payloadWithJobId));
+
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readTrackedMsg(payloadWithJobId, String::new, "reply.subject");
+        assertTrue(extracted.isBinaryJobId());
+        assertEquals(clientHash, extracted.getClientHash());
+        assertEquals(jobSeq, extracted.getJobSeq());
+        assertEquals(testPayload, extracted.getMsg());
+        assertEquals("reply.subject", extracted.getReplyTo());
+
+        byte[] overloadedMsg = JobIdSerdeHelper.writeTrackedMsg(extracted.replyOverloaded(), msg -> new byte[0]);
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(overloadedMsg));
+        TrackedMsg<String> overloaded = JobIdSerdeHelper.readTrackedMsg(overloadedMsg, String::new, null);
+        assertTrue(overloaded.isOverloaded());
+        assertEquals(jobSeq, overloaded.getJobSeq());
+    }
+
+    @org.junit.jupiter.api.Test
+    void readTrackedMsgInPlaceGetsPayloadView() {
+        byte[] payloadWithJobId = JobIdSerdeHelper.prependPayloadWithBinaryJobId(7, 8L, "Hello".getBytes());
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readTrackedMsgInPlace(payloadWithJobId, (bytes, offset, length) -> {
+            assertSame(payloadWithJobId, bytes);
+            assertEquals(JobIdSerdeHelper.BINARY_HEADER_SIZE, offset);
+            return new String(bytes, offset, length);
+        }, null);
+        assertEquals("Hello", extracted.getMsg());
+
+        byte[] legacyPayloadWithJobId = JobIdSerdeHelper.prependPayloadWithJobId("JobId-4", "World".getBytes());
+        assertEquals("World", JobIdSerdeHelper.readTrackedMsgInPlace(legacyPayloadWithJobId, String::new, null).getMsg());
+    }
+
+    @org.junit.jupiter.api.Test
+    void formatIdRoundTrip() {
+        TrackedMsg<String> trackedMsg = new TrackedMsg<>(7, 8L, "Hello", null, (byte) 2);
+        byte[] payloadWithJobId = JobIdSerdeHelper.writeTrackedMsg(trackedMsg, String::getBytes);
+        assertEquals(2, JobIdSerdeHelper.readFormatId(payloadWithJobId));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(payloadWithJobId));
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readFormattedTrackedMsg(payloadWithJobId, formatId -> {
+            assertEquals(2, formatId);
+            return String::new;
+        }, null);
+        assertEquals("Hello", extracted.getMsg());
+        assertEquals(2, extracted.reply("World").getFormatId());
+    }
+
+    @org.junit.jupiter.api.Test
+    void readTrackedMsgReadsLegacyJobId() {
+        String jobId = "JobId-3";
+        byte[] payloadWithJobId = JobIdSerdeHelper.prependPayloadWithJobId(jobId, "Hello".getBytes());
+        assertFalse(JobIdSerdeHelper.isBinaryJobId(payloadWithJobId));
+        TrackedMsg<String> extracted = JobIdSerdeHelper.readTrackedMsg(payloadWithJobId, String::new, null);
+        assertFalse(extracted.isBinaryJobId());
+        assertEquals(jobId, extracted.getJobId());
+        assertEquals("Hello", extracted.getMsg());
+
+        // the response echoes the legacy format
+        byte[] resp = JobIdSerdeHelper.writeTrackedMsg(extracted.reply("World"), String::getBytes);
+        assertEquals(jobId, JobIdSerdeHelper.findJobId(resp));
+    }
+
+    @org.junit.jupiter.api.Test
+    void roundTripTestJobIdInHeaders() {
+        int clientHash = JobIdGenerator.hashClientId("ClientCore-4d5e6f");
+        long jobSeq = 42L;
+        byte[] payload = "Hello, world!".getBytes();
+        TrackedMsg<byte[]> trackedMsg = new TrackedMsg<>(clientHash, jobSeq, payload, null);
+        Message natsMsg = NatsMessage.builder()
+                .subject("test.subject")
+                .replyTo("reply.subject")
+                .headers(JobIdSerdeHelper.createJobIdHeaders(trackedMsg))
+                .data(JobIdSerdeHelper.writePayload(trackedMsg, msg -> msg))
+                .build();
+        assertTrue(JobIdSerdeHelper.hasJobIdHeaders(natsMsg));
+
+        TrackedMsg<byte[]> extracted = JobIdSerdeHelper.readTrackedMsg(natsMsg, bytes -> bytes);
+        assertTrue(extracted.isJobIdInHeaders());
+        assertEquals(clientHash, extracted.getClientHash());
+        assertEquals(jobSeq, extracted.getJobSeq());
+        assertEquals("reply.subject", extracted.getReplyTo());
+        assertSame(natsMsg.getData(), extracted.getMsg(), "payload was copied");
+
+        // the response keeps the header mode
+        TrackedMsg<byte[]> overloaded = extracted.replyOverloaded();
+        assertTrue(overloaded.isJobIdInHeaders());
+        Message overloadedMsg = NatsMessage.builder()
+                .subject("reply.subject")
+                .headers(JobIdSerdeHelper.createJobIdHeaders(overloaded))
+                .data(JobIdSerdeHelper.writePayload(overloaded, msg -> msg))
+                .build();
+        assertTrue(JobIdSerdeHelper.readTrackedMsg(overloadedMsg, bytes -> bytes).isOverloaded());
+    }
+
+}
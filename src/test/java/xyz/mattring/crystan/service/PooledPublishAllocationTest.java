@@ -0,0 +1,79 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.msgbus.Publisher;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+import xyz.mattring.crystan.util.ByteArrayOutput;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that the steady state publish path only allocates the array that is handed to the NATS client,
+ * and that a serializer's own array is handed over without a copy when nothing is prepended to it.
+ */
+class PooledPublishAllocationTest {
+
+    static final int PAYLOAD_SIZE = 100;
+    static final int WARMUP = 50_000;
+    static final int MEASURED = 10_000;
+
+    final RecordingConnection conn = new RecordingConnection(false);
+
+    @Test
+    void publishPooledOnlyAllocatesTheFinalArray() {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        final Codec<byte[]> codec = Codec.of(Codec.FORMAT_DEFAULT, bytes -> bytes, null);
+        final BiConsumer<TrackedMsg<byte[]>, ByteArrayOutput> writer = (msg, out) -> JobIdSerdeHelper.writeTrackedMsg(msg, codec, out);
+        final TrackedMsg<byte[]> msg = new TrackedMsg<>(7, 8L, payload, null);
+        final Publisher<TrackedMsg<byte[]>> publisher = new Publisher<>() {
+        };
+
+        for (int i = 0; i < WARMUP; i++) {
+            publisher.publishPooled(msg, writer, null, "subject", null, conn.connection);
+        }
+        final long threadId = Thread.currentThread().threadId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED; i++) {
+            publisher.publishPooled(msg, writer, null, "subject", null, conn.connection);
+        }
+        final long bytesPerPublish = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / MEASURED;
+
+        assertEquals(JobIdSerdeHelper.BINARY_HEADER_SIZE + PAYLOAD_SIZE, conn.lastPublished().length);
+        // the final array (16 byte header + 114 bytes), plus the proxy's argument array
+        final long finalArraySize = 16 + JobIdSerdeHelper.BINARY_HEADER_SIZE + PAYLOAD_SIZE;
+        assertTrue(bytesPerPublish <= finalArraySize + 64, "allocated " + bytesPerPublish + " bytes per publish");
+    }
+
+    @Test
+    void headerModePublishesTheSerializerOutputAsIs() {
+        final List<byte[]> serialized = new ArrayList<>();
+        final Function<String, byte[]> serializer = str -> {
+            final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            serialized.add(bytes);
+            return bytes;
+        };
+        final ServerCore<String, String> server = ServiceFixtures.serverCore(ServiceFixtures.serverBuilder()
+                .businessLogic(String::toUpperCase)
+                .respMsgSerializer(serializer), conn.connection);
+        server.publishResponse(new TrackedMsg<>(7, 8L, "a", null).withJobIdInHeaders().reply("A"));
+        assertSame(serialized.get(0), conn.lastPublished());
+
+        final ClientCore<String, String> client = ServiceFixtures.clientCore(serializer, conn.connection);
+        client.setJobIdInHeaders(true);
+        client.sendRequest("b", resp -> {
+        });
+        assertSame(serialized.get(1), conn.lastPublished());
+    }
+}
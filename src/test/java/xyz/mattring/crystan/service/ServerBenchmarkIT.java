@@ -0,0 +1,95 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.json.JsonConverter;
+import xyz.mattring.crystan.util.BytesConverter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of SingleThreadServer, ServerCore and VirtualThreadServer
+ * for CPU bound and I/O bound business logic. Prints the results; only checks the responses.
+ */
+public class ServerBenchmarkIT extends NatsTestBase {
+
+    static final int NUM_REQUESTS = 2_000;
+    static final int MAX_CONCURRENCY = 256;
+    final JsonConverter jsonConverter = new JsonConverter() {
+    };
+
+    static Bar cpuBound(Foo foo) {
+        double acc = foo.getVal2();
+        for (int i = 0; i < 20_000; i++) {
+            acc = Math.sqrt(acc + i);
+        }
+        return acc < 0 ? null : new Bar(foo);
+    }
+
+    static Bar ioBound(Foo foo) {
+        try {
+            Thread.sleep(5L);
+        } catch (InterruptedException iex) {
+            throw new RuntimeException(iex);
+        }
+        return new Bar(foo);
+    }
+
+    Foo deserializeFoo(byte[] bytes) {
+        return jsonConverter.fromJson(bytes, Foo.class);
+    }
+
+    byte[] serializeBar(Bar bar) {
+        return jsonConverter.toJsonBytes(bar);
+    }
+
+    @Test
+    public void compareServers() throws Exception {
+        final List<String> results = new ArrayList<>();
+        for (String logicName : List.of("cpu", "io")) {
+            final Function<Foo, Bar> logic = logicName.equals("cpu") ? ServerBenchmarkIT::cpuBound : ServerBenchmarkIT::ioBound;
+            final String subjectA = "it.bench." + logicName + ".subjectA";
+            final String subjectB = "it.bench." + logicName + ".subjectB";
+
+            final SingleThreadServer<Foo, Bar> singleThreadServer = new SingleThreadServer<>(subjectA + ".single", subjectB + ".single", Foo.class, logic);
+            results.add(run("SingleThreadServer", logicName, singleThreadServer, singleThreadServer::stop, subjectA + ".single", subjectB + ".single"));
+
+            final ServerCore<Foo, Bar> serverCore = new ServerCore<>(subjectA + ".core", subjectB + ".core", this::deserializeFoo, logic, this::serializeBar);
+            results.add(run("ServerCore", logicName, serverCore, serverCore::stop, subjectA + ".core", subjectB + ".core"));
+
+            final VirtualThreadServer<Foo, Bar> virtualThreadServer = new VirtualThreadServer<>(subjectA + ".virtual", subjectB + ".virtual", this::deserializeFoo, logic, this::serializeBar, MAX_CONCURRENCY);
+            results.add(run("VirtualThreadServer", logicName, virtualThreadServer, virtualThreadServer::stop, subjectA + ".virtual", subjectB + ".virtual"));
+        }
+        results.forEach(System.out::println);
+    }
+
+    String run(String serverName, String logicName, Runnable server, Runnable stopServer, String subjectA, String subjectB) throws Exception {
+        final ClientCore<Foo, Bar> clientCore = new ClientCore<>(
+                subjectA,
+                subjectB,
+                foo -> BytesConverter.utf8ToBytes(jsonConverter.toJson(foo)),
+                bytes -> jsonConverter.fromJson(bytes, Bar.class));
+        new Thread(server).start();
+        new Thread(clientCore).start();
+        Thread.sleep(500L);
+
+        final long startNanos = System.nanoTime();
+        final List<CompletableFuture<Bar>> futures = new ArrayList<>(NUM_REQUESTS);
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            futures.add(clientCore.sendRequestAsync(new Foo("foo" + i, (double) i), Duration.ofSeconds(60)));
+        }
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            assertEquals(new Bar(new Foo("foo" + i, (double) i)), futures.get(i).get(90, TimeUnit.SECONDS));
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        clientCore.stop();
+        stopServer.run();
+        return String.format("%-20s %-3s %,10.0f req/s", serverName, logicName, NUM_REQUESTS * 1e9 / elapsedNanos);
+    }
+}
@@ -0,0 +1,148 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerCoreAsyncLogicTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+
+    ServerCore<String, String> createServer(ServerCore.Builder<String, String> builder) {
+        return ServiceFixtures.serverCore(builder, conn.connection);
+    }
+
+    /**
+     * @return the payloads of the published responses, without the overloaded and failed ones
+     */
+    List<String> published() {
+        return conn.published.stream()
+                .filter(data -> !JobIdSerdeHelper.isOverloadedMsg(data) && !JobIdSerdeHelper.isFailedMsg(data))
+                .map(ServiceFixtures::payload)
+                .toList();
+    }
+
+    long numFailed() {
+        return conn.published.stream().filter(JobIdSerdeHelper::isFailedMsg).count();
+    }
+
+    static ServerCore.ReqRespEvent<String, String> event(String req) {
+        final ServerCore.ReqRespEvent<String, String> event = new ServerCore.ReqRespEvent<>();
+        event.req = req;
+        event.trackedReq = new TrackedMsg<>(7, 1L, req, null);
+        return event;
+    }
+
+    @Test
+    void publishesWhenStageCompletes() {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final Function<String, CompletableFuture<String>> asyncLogic = req -> future;
+        final ServerCore<String, String> server = createServer(ServiceFixtures.serverBuilder()
+                .asyncLogic(asyncLogic::apply, 1));
+        final ServerCore.ReqRespEvent<String, String> event = event("a");
+        server.handleRequestEvent(event, 0L, true);
+        assertNull(event.resp);
+        assertEquals(1, server.getNumInFlight());
+        assertTrue(published().isEmpty());
+
+        future.complete("A");
+        assertEquals(List.of("A"), published());
+        assertEquals(0, server.getNumInFlight());
+    }
+
+    @Test
+    void failedLogicGetsFailedResponse() throws Exception {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final ServerCore<String, String> server = createServer(ServiceFixtures.serverBuilder()
+                .asyncLogic(req -> {
+                    if (req.equals("throw")) {
+                        throw new IllegalStateException(req);
+                    }
+                    return future;
+                }, 2));
+        server.handleRequestEvent(event("a"), 0L, true);
+        future.completeExceptionally(new IllegalStateException("failed"));
+        assertEquals(1, numFailed());
+        assertEquals(1, server.getNumAsyncFailures());
+        assertEquals(0, server.getNumInFlight());
+
+        // logic that throws is answered by the response handler
+        final ServerCore.ReqRespEvent<String, String> thrown = event("throw");
+        server.handleRequestEvent(thrown, 1L, true);
+        assertTrue(thrown.failed);
+        server.handleResponseEvent(thrown, 1L, true);
+        assertEquals(2, numFailed());
+        assertFalse(conn.published.stream().anyMatch(JobIdSerdeHelper::isOverloadedMsg));
+        assertEquals(2, server.getNumAsyncFailures());
+        assertEquals(0, server.getNumInFlight());
+        assertTrue(published().isEmpty());
+    }
+
+    @Test
+    void runsBlockingLogicOnVirtualThreads() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        final ServerCore<String, String> server = createServer(ServiceFixtures.serverBuilder()
+                .virtualThreadLogic(req -> {
+                    assertTrue(Thread.currentThread().isVirtual());
+                    done.countDown();
+                    return req.toUpperCase();
+                }, 2));
+        server.handleRequestEvent(event("a"), 0L, false);
+        server.handleRequestEvent(event("b"), 1L, true);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        while (server.getNumInFlight() > 0) {
+            Thread.onSpinWait();
+        }
+        assertEquals(2, published().size());
+        assertTrue(published().containsAll(List.of("A", "B")));
+    }
+
+    @Test
+    void stoppingShedsRequestsWaitingForAPermit() throws InterruptedException {
+        final ServerCore<String, String> server = createServer(ServiceFixtures.serverBuilder()
+                .asyncLogic(req -> new CompletableFuture<>(), 1));
+        server.running = true;
+        server.handleRequestEvent(event("a"), 0L, true);
+        final ServerCore.ReqRespEvent<String, String> waiting = event("b");
+        final Thread worker = new Thread(() -> server.handleRequestEvent(waiting, 1L, true));
+        worker.start();
+        Thread.sleep(50L);
+        assertTrue(worker.isAlive());
+
+        // the first stage never completes, so only stopping can release the worker
+        server.running = false;
+        worker.join(5_000L);
+        assertFalse(worker.isAlive());
+        assertTrue(waiting.overloaded);
+        assertEquals(1, server.getNumDropped());
+        assertEquals(1, server.getNumInFlight());
+    }
+
+    @Test
+    void stopWaitsForResponsesInFlight() throws InterruptedException {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final ServerCore<String, String> server = createServer(ServiceFixtures.serverBuilder()
+                .asyncLogic(req -> future, 1));
+        server.handleRequestEvent(event("a"), 0L, true);
+        final Thread completer = new Thread(() -> {
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+            future.complete("A");
+        });
+        completer.start();
+        server.awaitAsyncResponses();
+        assertEquals(List.of("A"), published());
+        assertEquals(0, server.getNumInFlight());
+        completer.join();
+    }
+}
@@ -0,0 +1,58 @@
+package xyz.mattring.crystan.service;
+
+import com.lmax.disruptor.EventHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerCoreBatchLogicTest {
+
+    final List<Integer> batchSizes = new ArrayList<>();
+
+    ServerCore<String, String> createServer(int numWorkers, int maxLogicBatch) {
+        return ServiceFixtures.serverBuilder()
+                .batchLogic(reqs -> {
+                    batchSizes.add(reqs.size());
+                    return reqs.stream().map(String::toUpperCase).toList();
+                }, maxLogicBatch)
+                .numWorkers(numWorkers)
+                .build();
+    }
+
+    static ServerCore.ReqRespEvent<String, String> event(String req) {
+        final ServerCore.ReqRespEvent<String, String> event = new ServerCore.ReqRespEvent<>();
+        event.req = req;
+        return event;
+    }
+
+    @Test
+    void batchesUntilEndOfBatch() throws Exception {
+        final ServerCore<String, String> server = createServer(1, 10);
+        final EventHandler<ServerCore.ReqRespEvent<String, String>> worker = server.createRequestWorker(0);
+        final List<ServerCore.ReqRespEvent<String, String>> events = List.of(event("a"), event("b"), event("c"));
+        for (int i = 0; i < events.size(); i++) {
+            worker.onEvent(events.get(i), i, i == events.size() - 1);
+        }
+        assertEquals(List.of(3), batchSizes);
+        assertEquals(List.of("A", "B", "C"), events.stream().map(e -> e.resp).toList());
+        assertEquals(3.0, server.getAvgLogicBatchSize());
+    }
+
+    @Test
+    void batchesAreCappedAndSharded() throws Exception {
+        final ServerCore<String, String> server = createServer(2, 2);
+        final EventHandler<ServerCore.ReqRespEvent<String, String>> worker = server.createRequestWorker(1);
+        final List<ServerCore.ReqRespEvent<String, String>> events = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            events.add(event("r" + i));
+            worker.onEvent(events.get(i), i, i == 6);
+        }
+        // worker 1 only handles the odd sequences: 1 and 3, then 5 at the end of the batch
+        assertEquals(List.of(2, 1), batchSizes);
+        assertNull(events.get(0).resp);
+        assertEquals("R5", events.get(5).resp);
+    }
+}
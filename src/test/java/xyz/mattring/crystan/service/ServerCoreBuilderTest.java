@@ -0,0 +1,35 @@
+package xyz.mattring.crystan.service;
+
+import com.lmax.disruptor.dsl.ProducerType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerCoreBuilderTest {
+
+    static ServerCore.Builder<String, String> builder() {
+        return ServiceFixtures.serverBuilder().businessLogic(String::toUpperCase);
+    }
+
+    @Test
+    void singleProducerNeedsOneDispatcher() {
+        assertThrows(IllegalArgumentException.class, () -> builder()
+                .queueGroup("workers")
+                .connectionPoolSize(2)
+                .producerType(ProducerType.SINGLE)
+                .build());
+        // one dispatcher: no queue group, or a single connection
+        assertEquals(2, builder().connectionPoolSize(2).producerType(ProducerType.SINGLE).build().getConnectionPoolSize());
+        assertEquals(2, builder().queueGroup("workers").connectionPoolSize(2).build().getConnectionPoolSize());
+
+        final ServerCore<String, String> server = builder().queueGroup("workers").producerType(ProducerType.SINGLE).build();
+        assertThrows(IllegalArgumentException.class, () -> server.setConnectionPoolSize(2));
+        assertEquals(1, server.getConnectionPoolSize());
+    }
+
+    @Test
+    void requiresExactlyOneLogic() {
+        assertThrows(IllegalArgumentException.class, () -> ServiceFixtures.serverBuilder().build());
+        assertThrows(IllegalArgumentException.class, () -> builder().batchLogic(reqs -> reqs, 10).build());
+    }
+}
@@ -0,0 +1,60 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerCoreResponseBatchingTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+    final List<String> calls = conn.calls;
+
+    ServerCore<String, String> createServer(int maxResponseBatch) {
+        return ServiceFixtures.serverCore(ServiceFixtures.serverBuilder()
+                .businessLogic(String::toUpperCase)
+                .responseBatching(maxResponseBatch, Duration.ofSeconds(10)), conn.connection);
+    }
+
+    static ServerCore.ReqRespEvent<String, String> event(long jobSeq) {
+        final ServerCore.ReqRespEvent<String, String> event = new ServerCore.ReqRespEvent<>();
+        event.trackedReq = new TrackedMsg<>(7, jobSeq, "req", null);
+        event.req = "req";
+        event.resp = "RESP";
+        return event;
+    }
+
+    @Test
+    void flushesOncePerBatch() {
+        final ServerCore<String, String> server = createServer(100);
+        server.handleResponseEvent(event(1L), 0L, false);
+        server.handleResponseEvent(event(2L), 1L, false);
+        assertTrue(calls.isEmpty());
+        server.handleResponseEvent(event(3L), 2L, true);
+        assertEquals(List.of("publish", "publish", "publish", "flushBuffer"), calls);
+        assertEquals(1L, server.getNumResponseBatches());
+        assertEquals(3L, server.getMaxResponseBatchSize());
+        assertEquals(3.0, server.getAvgResponseBatchSize());
+    }
+
+    @Test
+    void flushesAtMaxBatch() {
+        final ServerCore<String, String> server = createServer(2);
+        for (int i = 0; i < 5; i++) {
+            server.handleResponseEvent(event(i), i, false);
+        }
+        assertEquals(2L, server.getNumResponseBatches());
+        assertEquals(2L, server.getMaxResponseBatchSize());
+    }
+
+    @Test
+    void publishesImmediatelyWithoutBatching() {
+        final ServerCore<String, String> server = createServer(1);
+        server.handleResponseEvent(event(1L), 0L, false);
+        assertEquals(List.of("publish"), calls);
+        assertEquals(0L, server.getNumResponseBatches());
+    }
+}
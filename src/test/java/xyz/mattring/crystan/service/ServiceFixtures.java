@@ -0,0 +1,85 @@
+package xyz.mattring.crystan.service;
+
+import io.nats.client.Connection;
+import xyz.mattring.crystan.codec.Codec;
+import xyz.mattring.crystan.msgbus.PayloadDeserializer;
+
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * String request and response components for unit tests, which publish through a fake connection
+ * instead of connecting to NATS, see {@link xyz.mattring.crystan.msgbus.RecordingConnection}.
+ */
+final class ServiceFixtures {
+
+    private ServiceFixtures() {
+    }
+
+    static Codec<String> stringCodec() {
+        return Codec.of(Codec.FORMAT_DEFAULT, String::getBytes, PayloadDeserializer.of(String::new));
+    }
+
+    /**
+     * @return a builder with the subjects and the String serialization set, but no business logic
+     */
+    static ServerCore.Builder<String, String> serverBuilder() {
+        return new ServerCore.Builder<String, String>()
+                .rcvReqSubject("req")
+                .sendRespSubject("resp")
+                .reqMsgDeserializer(String::new)
+                .respMsgSerializer(String::getBytes);
+    }
+
+    static ServerCore<String, String> serverCore(ServerCore.Builder<String, String> builder, Connection conn) {
+        return new ServerCore<>(builder) {
+            @Override
+            public Connection getConnection() {
+                return conn;
+            }
+        };
+    }
+
+    static ClientCore<String, String> clientCore(Function<String, byte[]> reqSerializer, Connection conn) {
+        return new ClientCore<>("req", "resp", reqSerializer, (byte[] bytes) -> new String(bytes)) {
+            @Override
+            public Connection getConnection() {
+                return conn;
+            }
+        };
+    }
+
+    static ClientCore<String, String> clientCore(Connection conn) {
+        return clientCore(String::getBytes, conn);
+    }
+
+    /**
+     * Creates a server with its executor, as if it was running.
+     */
+    static VirtualThreadServer<String, String> virtualThreadServer(Function<String, String> logic, int maxConcurrency, Connection conn) {
+        final VirtualThreadServer<String, String> server = new VirtualThreadServer<>("req", "resp", String::new, logic, String::getBytes, maxConcurrency) {
+            @Override
+            public Connection getConnection() {
+                return conn;
+            }
+        };
+        server.executor = Executors.newVirtualThreadPerTaskExecutor();
+        return server;
+    }
+
+    static SingleThreadServer<String, String> singleThreadServer(Function<String, String> logic, Connection conn) {
+        return new SingleThreadServer<>("req", "resp", stringCodec(), stringCodec(), logic) {
+            @Override
+            public Connection getConnection() {
+                return conn;
+            }
+        };
+    }
+
+    /**
+     * @return the payload of a message with a binary Job ID header, as a String
+     */
+    static String payload(byte[] data) {
+        return new String(data, JobIdSerdeHelper.BINARY_HEADER_SIZE, data.length - JobIdSerdeHelper.BINARY_HEADER_SIZE);
+    }
+}
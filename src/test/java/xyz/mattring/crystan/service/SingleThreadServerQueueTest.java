@@ -0,0 +1,72 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleThreadServerQueueTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+    final List<byte[]> published = conn.published;
+
+    SingleThreadServer<String, String> createServer(OverloadPolicy overloadPolicy) {
+        final SingleThreadServer<String, String> server = ServiceFixtures.singleThreadServer(String::toUpperCase, conn.connection);
+        server.setQueueCapacity(4);
+        server.setMaxDrainBatch(2);
+        server.setOverloadPolicy(overloadPolicy);
+        return server;
+    }
+
+    @Test
+    void drainsInBatches() {
+        final SingleThreadServer<String, String> server = createServer(OverloadPolicy.BLOCK);
+        for (int i = 0; i < 3; i++) {
+            server.enqueueRequest(new TrackedMsg<>(7, i, "r" + i, null));
+        }
+        assertEquals(3, server.getQueueDepth());
+        assertEquals(2, server.doWork());
+        assertEquals(1, server.getQueueDepth());
+        assertEquals(1, server.doWork());
+        assertEquals(3, published.size());
+        assertEquals(0, server.doWork());
+    }
+
+    @Test
+    void rejectsWhenFull() {
+        final SingleThreadServer<String, String> server = createServer(OverloadPolicy.REJECT);
+        for (int i = 0; i < 5; i++) {
+            server.enqueueRequest(new TrackedMsg<>(7, i, "r" + i, null));
+        }
+        assertEquals(1, server.getNumRejected());
+        assertEquals(4, server.getQueueDepth());
+        assertEquals(1, published.size());
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(published.get(0)));
+    }
+
+    @Test
+    void dropsOldestWhenFull() throws InterruptedException {
+        final SingleThreadServer<String, String> server = createServer(OverloadPolicy.DROP_OLDEST);
+        server.running = true;
+        for (int i = 0; i < 4; i++) {
+            server.enqueueRequest(new TrackedMsg<>(7, i, "r" + i, null));
+        }
+        final Thread producer = new Thread(() -> server.enqueueRequest(new TrackedMsg<>(7, 4L, "r4", null)));
+        producer.start();
+        while (server.dropBeforeIndex == 0L) {
+            Thread.onSpinWait();
+        }
+        while (producer.isAlive() || server.getQueueDepth() > 0) {
+            server.doWork();
+        }
+        producer.join();
+        server.running = false;
+        assertEquals(2, server.getNumDropped());
+        assertEquals(5, published.size());
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(published.get(0)));
+        assertTrue(JobIdSerdeHelper.isOverloadedMsg(published.get(1)));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(published.get(2)));
+    }
+}
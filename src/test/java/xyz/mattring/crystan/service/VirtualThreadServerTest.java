@@ -0,0 +1,82 @@
+package xyz.mattring.crystan.service;
+
+import org.junit.jupiter.api.Test;
+import xyz.mattring.crystan.msgbus.RecordingConnection;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadServerTest {
+
+    final RecordingConnection conn = new RecordingConnection();
+    final List<byte[]> published = conn.published;
+
+    VirtualThreadServer<String, String> createServer(Function<String, String> logic, int maxConcurrency) {
+        return ServiceFixtures.virtualThreadServer(logic, maxConcurrency, conn.connection);
+    }
+
+    @Test
+    void handlesRequestsOnVirtualThreads() throws InterruptedException {
+        final VirtualThreadServer<String, String> server = createServer(req -> {
+            assertTrue(Thread.currentThread().isVirtual());
+            return req.toUpperCase();
+        }, 4);
+        server.dispatchRequest(new TrackedMsg<>(7, 1L, "a", null));
+        server.dispatchRequest(new TrackedMsg<>(7, 2L, "b", null));
+        server.executor.close();
+        assertEquals(2, published.size());
+        assertEquals(List.of("A", "B"), published.stream().map(ServiceFixtures::payload).sorted().toList());
+        assertEquals(0, server.getNumInFlight());
+        assertEquals(0, server.getNumFailures());
+    }
+
+    @Test
+    void rejectsWhenAtMaxConcurrency() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final VirtualThreadServer<String, String> server = createServer(req -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException iex) {
+                throw new RuntimeException(iex);
+            }
+            return req;
+        }, 1);
+        server.setOverloadPolicy(OverloadPolicy.REJECT);
+        server.dispatchRequest(new TrackedMsg<>(7, 1L, "a", null));
+        server.dispatchRequest(new TrackedMsg<>(7, 2L, "b", null));
+        assertEquals(1, server.getNumRejected());
+        assertEquals(1, server.getNumInFlight());
+        assertEquals(1, published.size());
+        assertEquals(JobIdSerdeHelper.FLAG_OVERLOADED, published.get(0)[1] & JobIdSerdeHelper.FLAG_OVERLOADED);
+
+        release.countDown();
+        server.executor.close();
+        assertEquals(2, published.size());
+        assertEquals(0, server.getNumInFlight());
+    }
+
+    @Test
+    void answersFailuresWithFailed() {
+        final VirtualThreadServer<String, String> server = createServer(req -> {
+            throw new IllegalStateException("boom");
+        }, 2);
+        server.dispatchRequest(new TrackedMsg<>(7, 1L, "a", null));
+        server.executor.close();
+        assertEquals(1, server.getNumFailures());
+        assertEquals(0, server.getNumInFlight());
+        assertEquals(1, published.size());
+        assertTrue(JobIdSerdeHelper.isFailedMsg(published.get(0)));
+        assertFalse(JobIdSerdeHelper.isOverloadedMsg(published.get(0)));
+        assertEquals(1L, JobIdSerdeHelper.readJobSeq(published.get(0)));
+    }
+
+    @Test
+    void rejectsDropOldest() {
+        final VirtualThreadServer<String, String> server = createServer(Function.identity(), 1);
+        assertThrows(IllegalArgumentException.class, () -> server.setOverloadPolicy(OverloadPolicy.DROP_OLDEST));
+    }
+}
@@ -0,0 +1,30 @@
+package xyz.mattring.crystan.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    void reusesReleasedBuffers() {
+        final BufferPool bufferPool = new BufferPool(4, 16, 64);
+        final ByteArrayOutput buffer = bufferPool.acquire();
+        buffer.write(new byte[]{1, 2, 3}, 0, 3);
+        bufferPool.release(buffer);
+
+        final ByteArrayOutput reused = bufferPool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.size());
+        assertNotSame(reused, bufferPool.acquire());
+    }
+
+    @Test
+    void dropsBuffersThatGrewTooLarge() {
+        final BufferPool bufferPool = new BufferPool(1, 16, 64);
+        final ByteArrayOutput buffer = bufferPool.acquire();
+        buffer.write(new byte[100], 0, 100);
+        bufferPool.release(buffer);
+        assertNotSame(buffer, bufferPool.acquire());
+    }
+}
@@ -0,0 +1,67 @@
+package xyz.mattring.crystan.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MpscArrayQueueTest {
+
+    @Test
+    void boundedFifo() {
+        final MpscArrayQueue<Integer> queue = new MpscArrayQueue<>(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        final List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drain(drained::add, 3));
+        assertEquals(List.of(0, 1, 2), drained);
+        assertEquals(3, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(4, queue.currentConsumerIndex());
+    }
+
+    @Test
+    void manyProducers() throws InterruptedException {
+        final int numProducers = 4;
+        final int perProducer = 10_000;
+        final MpscArrayQueue<int[]> queue = new MpscArrayQueue<>(64);
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < numProducers; p++) {
+            final int producer = p;
+            final Thread t = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    final int[] e = {producer, i};
+                    while (!queue.offer(e)) {
+                        Thread.yield(); // let the consumer run, even on a single core
+                    }
+                }
+            });
+            producers.add(t);
+            t.start();
+        }
+        final int[] nextPerProducer = new int[numProducers];
+        int total = 0;
+        while (total < numProducers * perProducer) {
+            final int drained = queue.drain(e -> {
+                assertEquals(nextPerProducer[e[0]], e[1], "out of order");
+                nextPerProducer[e[0]]++;
+            }, 16);
+            if (drained == 0) {
+                Thread.yield(); // a producer may have claimed a slot without publishing it yet
+            }
+            total += drained;
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+}